@@ -0,0 +1,124 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+import javax.microedition.khronos.egl.EGLSurface;
+import javax.microedition.khronos.opengles.GL10;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Uploads faces in the background. The uploader has its own EGL context, 
+// which shares textures with the context of the GL view, and a 1x1 pbuffer 
+// surface to make this context current. Each face is finished with glFinish() 
+// before it is published to the TextureResidencyManager. So the renderer 
+// never sees a texture that is still being uploaded and never blocks on an 
+// upload.
+//
+// If no shared context can be created (some drivers don't support this), the 
+// manager is told to upload the faces on the GL thread instead.
+public class AsyncTextureUploader extends Thread {
+	private static final String LOG_TAG = AsyncTextureUploader.class.getSimpleName();
+	
+	private EGL10 egl;
+	private EGLDisplay display;
+	private EGLConfig config;
+	private EGLContext sharedContext;
+	
+	private TextureResidencyManager textures;
+	
+	private boolean terminate = false;
+	
+	public AsyncTextureUploader(SharedContextFactory contextFactory, TextureResidencyManager textures) {
+		this.egl = contextFactory.getEGL();
+		this.display = contextFactory.getDisplay();
+		this.config = contextFactory.getConfig();
+		this.sharedContext = contextFactory.getContext();
+		this.textures = textures;
+	}
+	
+	@Override
+	public void run() {
+		EGLContext context = egl.eglCreateContext(display, config, sharedContext, null);
+		if (context == null || context == EGL10.EGL_NO_CONTEXT) {
+			Log.i(LOG_TAG, "Shared contexts not supported (error " + egl.eglGetError() + ")");
+			textures.onUploaderFailed();
+			return;
+		}
+		
+		int[] pbufferAttributes = {EGL10.EGL_WIDTH, 1, EGL10.EGL_HEIGHT, 1, EGL10.EGL_NONE};
+		EGLSurface surface = egl.eglCreatePbufferSurface(display, config, pbufferAttributes);
+		if (surface == null || surface == EGL10.EGL_NO_SURFACE) {
+			Log.i(LOG_TAG, "Failed to create pbuffer (error " + egl.eglGetError() + ")");
+			egl.eglDestroyContext(display, context);
+			textures.onUploaderFailed();
+			return;
+		}
+		
+		try {
+			if (!egl.eglMakeCurrent(display, surface, surface, context)) {
+				Log.i(LOG_TAG, "Failed to make shared context current (error " + egl.eglGetError() + ")");
+				textures.onUploaderFailed();
+				return;
+			}
+			
+			GL10 gl = (GL10) context.getGL();
+			
+			int faceNo;
+			while (!isTerminated() && (faceNo = textures.takePendingFace()) >= 0) {
+				long tStart = SystemClock.elapsedRealtime();
+				
+				textures.upload(gl, faceNo);
+				// GLES 1.0 has no fences. glFinish() makes sure the texture is
+				// complete before the renderer may use it.
+				gl.glFinish();
+				
+				Log.i(LOG_TAG, "Uploaded face " + faceNo + " in " + (SystemClock.elapsedRealtime()-tStart) + " ms");
+				textures.publish(faceNo);
+			}
+		} finally {
+			egl.eglMakeCurrent(display, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_SURFACE, EGL10.EGL_NO_CONTEXT);
+			egl.eglDestroySurface(display, surface);
+			egl.eglDestroyContext(display, context);
+		}
+	}
+	
+	// Stops the uploader and waits until its context has been destroyed. Faces 
+	// that are not published yet will not be published anymore.
+	public void terminate() {
+		synchronized (this) {
+			terminate = true;
+		}
+		
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Log.e(LOG_TAG, "Interrupted while waiting for uploader: " + e.getMessage());
+		}
+	}
+	
+	private synchronized boolean isTerminated() {
+		return terminate;
+	}
+}
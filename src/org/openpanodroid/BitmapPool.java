@@ -0,0 +1,173 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.openpanodroid.ioutils.ByteArrayPool;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+// Process-wide pool of bitmaps and byte buffers. Bitmaps are pooled by size 
+// class (width, height, and pixel format) and handed out with acquire(); 
+// they are given back with release(). This allows the panorama conversion, 
+// the thumbnail decoder, and the texture upload to re-use the same large 
+// bitmaps instead of allocating (and garbage collecting) new ones for every 
+// image.
+//
+// Pooled bitmaps are kept as long as their total size stays below the byte 
+// budget of the pool. If the budget is exceeded, the least recently released
+// bitmaps are recycled.
+public class BitmapPool {
+	private static final String LOG_TAG = BitmapPool.class.getSimpleName();
+	
+	// Fraction of the maximum heap size that may be held by pooled bitmaps. 
+	private static final int HEAP_FRACTION = 8;
+	
+	private static final int MAX_POOLED_BUFFER_BYTES = 1024*1024;
+	
+	private static BitmapPool instance = null;
+	
+	private final int maxPooledBytes;
+	private int pooledBytes;
+	
+	// Ordered by release time (least recently released first).
+	private LinkedList<Bitmap> bitmaps = new LinkedList<Bitmap>();
+	
+	private ByteArrayPool buffers = new ByteArrayPool(MAX_POOLED_BUFFER_BYTES);
+	
+	private int acquireCnt;
+	private int allocationCnt;
+	
+	public static synchronized BitmapPool getInstance() {
+		if (instance == null) {
+			int maxPooledBytes = (int) (Runtime.getRuntime().maxMemory()/HEAP_FRACTION);
+			instance = new BitmapPool(maxPooledBytes);
+		}
+		
+		return instance;
+	}
+	
+	public BitmapPool(int maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+		pooledBytes = 0;
+	}
+	
+	// Returns a mutable bitmap of the given size and format. The content of the
+	// bitmap is undefined. If the pool has no such bitmap, a new one is allocated.
+	// If the allocation fails, the pool is emptied and allocation is tried once 
+	// more.
+	public Bitmap acquire(int width, int height, Bitmap.Config config) {
+		Bitmap bitmap = get(width, height, config);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		
+		synchronized (this) {
+			allocationCnt++;
+		}
+		
+		try {
+			return Bitmap.createBitmap(width, height, config);
+		} catch (OutOfMemoryError e) {
+			Log.i(LOG_TAG, "Out of memory. Emptying pool (" + getPooledBytes() + " bytes).");
+			clear();
+			return Bitmap.createBitmap(width, height, config);
+		}
+	}
+	
+	// Like acquire(), but returns null instead of allocating a new bitmap. This
+	// is used to find decode targets.
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		acquireCnt++;
+		
+		// Prefer the most recently released bitmap.
+		for (Iterator<Bitmap> it = bitmaps.descendingIterator(); it.hasNext(); ) {
+			Bitmap bitmap = it.next();
+			if (bitmap.getWidth() == width && bitmap.getHeight() == height && 
+					bitmap.getConfig() == config) {
+				it.remove();
+				pooledBytes -= getByteCount(bitmap);
+				return bitmap;
+			}
+		}
+		
+		return null;
+	}
+	
+	// Gives a bitmap back to the pool. The caller must not use the bitmap
+	// afterwards. Bitmaps that cannot be re-used (immutable bitmaps or bitmaps
+	// exceeding the budget) are recycled right away.
+	public void release(Bitmap bitmap) {
+		if (bitmap == null || bitmap.isRecycled()) {
+			return;
+		}
+		
+		int byteCnt = getByteCount(bitmap);
+		if (!bitmap.isMutable() || byteCnt > maxPooledBytes) {
+			bitmap.recycle();
+			return;
+		}
+		
+		synchronized (this) {
+			bitmaps.addLast(bitmap);
+			pooledBytes += byteCnt;
+			trimToSize(maxPooledBytes);
+		}
+	}
+	
+	// Recycles least recently released bitmaps until the pool holds at most 
+	// the given number of bytes.
+	public synchronized void trimToSize(int maxBytes) {
+		while (pooledBytes > maxBytes && bitmaps.size() > 0) {
+			Bitmap dropped = bitmaps.removeFirst();
+			pooledBytes -= getByteCount(dropped);
+			dropped.recycle();
+		}
+	}
+	
+	// Recycles all pooled bitmaps, e.g., if the system is running low on memory.
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+	
+	// Pool for intermediate byte buffers (e.g., download or compression buffers).
+	public ByteArrayPool getBufferPool() {
+		return buffers;
+	}
+	
+	public synchronized int getAcquireCount() {
+		return acquireCnt;
+	}
+	
+	public synchronized int getAllocationCount() {
+		return allocationCnt;
+	}
+	
+	public synchronized int getPooledBytes() {
+		return pooledBytes;
+	}
+	
+	public static int getByteCount(Bitmap bitmap) {
+		return bitmap.getRowBytes()*bitmap.getHeight();
+	}
+}
@@ -0,0 +1,190 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+import junit.framework.Assert;
+
+import org.openpanodroid.panoutils.android.CubicPanoNative.TextureFaces;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+// Stores the six faces of a cubic panorama as raw RGBA pixels (4 bytes per 
+// pixel, the layout of ARGB_8888 bitmaps and of GL_RGBA/GL_UNSIGNED_BYTE 
+// textures). The pixels are kept outside the Java heap in a memory-mapped 
+// file, so the operating system can page them out under memory pressure and 
+// page them in again when the faces are uploaded as textures. No image codec 
+// is involved in storing or loading faces.
+//
+// If the file cannot be mapped, the faces are kept in a direct buffer.
+public class FaceStore {
+	private static final String LOG_TAG = FaceStore.class.getSimpleName();
+	
+	private static final int BYTES_PER_PIXEL = 4;
+	private static final String FILE_PREFIX = "faces";
+	private static final String FILE_SUFFIX = ".rgba";
+	
+	private File file;
+	private int faceSize;
+	private ByteBuffer pixels;
+	
+	// Creates a new store for faces of the given size (in pixels) in the given directory.
+	public static FaceStore create(File dir, int faceSize) {
+		int byteCnt = getFaceByteCount(faceSize)*TextureFaces.values().length;
+		
+		try {
+			dir.mkdirs();
+			File file = File.createTempFile(FILE_PREFIX, FILE_SUFFIX, dir);
+			ByteBuffer pixels = map(file, byteCnt);
+			return new FaceStore(file, faceSize, pixels);
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Failed to map face file: " + e.getMessage());
+		}
+		
+		ByteBuffer pixels = ByteBuffer.allocateDirect(byteCnt);
+		return new FaceStore(null, faceSize, pixels);
+	}
+	
+	// Opens a store that was written before, e.g., by an activity instance
+	// that was destroyed due to a configuration change. Returns null if the 
+	// file does not exist (anymore) or does not match the face size.
+	public static FaceStore open(File file, int faceSize) {
+		int byteCnt = getFaceByteCount(faceSize)*TextureFaces.values().length;
+		
+		if (!file.exists() || file.length() != byteCnt) {
+			return null;
+		}
+		
+		try {
+			ByteBuffer pixels = map(file, byteCnt);
+			return new FaceStore(file, faceSize, pixels);
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Failed to map face file: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	// Deletes face files in the given directory that are not used by any of the 
+	// given stores.
+	public static void deleteUnused(File dir, Collection<FaceStore> inUse) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		
+		for (File f : files) {
+			if (f.getName().startsWith(FILE_PREFIX) && f.getName().endsWith(FILE_SUFFIX) && 
+					!isUsed(f, inUse)) {
+				f.delete();
+			}
+		}
+	}
+	
+	private static boolean isUsed(File file, Collection<FaceStore> inUse) {
+		for (FaceStore store : inUse) {
+			if (file.equals(store.getFile())) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	private static ByteBuffer map(File file, int byteCnt) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(byteCnt);
+			FileChannel channel = raf.getChannel();
+			// The mapping stays valid after the channel has been closed.
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, byteCnt);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	private FaceStore(File file, int faceSize, ByteBuffer pixels) {
+		this.file = file;
+		this.faceSize = faceSize;
+		this.pixels = pixels;
+	}
+	
+	private static int getFaceByteCount(int faceSize) {
+		return faceSize*faceSize*BYTES_PER_PIXEL;
+	}
+	
+	// Copies the pixels of the given ARGB_8888 bitmap to the given face.
+	public synchronized void putFace(TextureFaces face, Bitmap bmp) {
+		Assert.assertTrue(bmp.getConfig() == Bitmap.Config.ARGB_8888);
+		Assert.assertTrue(bmp.getWidth() == faceSize && bmp.getHeight() == faceSize);
+		
+		bmp.copyPixelsToBuffer(getFace(face));
+	}
+	
+	// Returns the pixels of the given face. The returned buffer shares its 
+	// content with the store, but has its own position and limit.
+	public synchronized ByteBuffer getFace(TextureFaces face) {
+		Assert.assertTrue(pixels != null);
+		
+		int faceByteCnt = getFaceByteCount(faceSize);
+		ByteBuffer faceBuffer = pixels.duplicate();
+		faceBuffer.position(face.ordinal()*faceByteCnt);
+		faceBuffer.limit((face.ordinal()+1)*faceByteCnt);
+		
+		return faceBuffer.slice();
+	}
+	
+	public int getFaceSize() {
+		return faceSize;
+	}
+	
+	public int getByteCount() {
+		return getFaceByteCount(faceSize)*TextureFaces.values().length;
+	}
+	
+	// File backing this store or null if the faces are kept in memory.
+	public File getFile() {
+		return file;
+	}
+	
+	// Forces the faces to be written to the file. Afterwards, the store can be 
+	// re-opened with open().
+	public synchronized void flush() {
+		if (pixels instanceof MappedByteBuffer) {
+			((MappedByteBuffer) pixels).force();
+		}
+	}
+	
+	// Releases the faces and deletes the backing file. The memory of the mapping 
+	// is released when the buffers returned by getFace() have been garbage collected.
+	public synchronized void delete() {
+		pixels = null;
+		if (file != null) {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+// Decides which faces of the cube can be seen with the current rotation and 
+// projection. The viewer sits in the center of the cube, so the view frustum 
+// is bounded by planes through the eye: the four side planes of the 
+// perspective projection and the plane of the eye itself (nothing behind the 
+// viewer is visible). A face is invisible if all of its corners are outside 
+// of the same plane. This test is conservative: a face close to a corner of 
+// the frustum might be drawn although it is not visible, but a visible face 
+// is never culled.
+//
+// This class does not depend on Android or OpenGL. It must only be used by one 
+// thread at a time (the GL thread).
+public class FaceVisibility {
+	private static final int PLANE_CNT = 5;
+	
+	// Inner normals of the frustum planes in eye coordinates. A point p is inside 
+	// of a plane if the dot product of p and the normal is not negative.
+	private float[][] planes = new float[PLANE_CNT][3];
+	
+	// Scratch array for the corners in eye coordinates, so no garbage is created
+	// per frame. Large enough for the 4 corners of a face; grown on demand.
+	private float[] eyeCorners = new float[4*3];
+	
+	private long frameCnt = 0;
+	private long drawnFaceCnt = 0;
+	
+	public FaceVisibility() {
+		// The eye plane does not depend on the projection. The viewer looks along
+		// the negative z axis.
+		planes[PLANE_CNT-1][0] = 0.0f;
+		planes[PLANE_CNT-1][1] = 0.0f;
+		planes[PLANE_CNT-1][2] = -1.0f;
+	}
+	
+	// Sets the projection (same parameters as gluPerspective()).
+	public void setProjection(float fovYDeg, float aspect) {
+		float tanV = (float) Math.tan(Math.toRadians(fovYDeg/2.0));
+		float tanH = aspect*tanV;
+		
+		setPlane(0, 1.0f, 0.0f, -tanH); // left
+		setPlane(1, -1.0f, 0.0f, -tanH); // right
+		setPlane(2, 0.0f, 1.0f, -tanV); // bottom
+		setPlane(3, 0.0f, -1.0f, -tanV); // top
+	}
+	
+	private void setPlane(int planeNo, float x, float y, float z) {
+		planes[planeNo][0] = x;
+		planes[planeNo][1] = y;
+		planes[planeNo][2] = z;
+	}
+	
+	// Tests a face given by its corners (x, y, z) in world coordinates. modelView 
+	// is the rotation matrix in column mode (as passed to glLoadMatrixf()).
+	public boolean isVisible(float[] modelView, float[] corners) {
+		int cornerCnt = corners.length/3;
+		if (eyeCorners.length < corners.length) {
+			eyeCorners = new float[corners.length];
+		}
+		
+		for (int i = 0; i < cornerCnt; i++) {
+			float x = corners[3*i];
+			float y = corners[3*i+1];
+			float z = corners[3*i+2];
+			
+			for (int row = 0; row < 3; row++) {
+				eyeCorners[3*i+row] = modelView[row]*x + modelView[4+row]*y + modelView[8+row]*z + modelView[12+row];
+			}
+		}
+		
+		for (int planeNo = 0; planeNo < PLANE_CNT; planeNo++) {
+			float[] n = planes[planeNo];
+			boolean allOutside = true;
+			
+			for (int i = 0; i < cornerCnt && allOutside; i++) {
+				float d = n[0]*eyeCorners[3*i] + n[1]*eyeCorners[3*i+1] + n[2]*eyeCorners[3*i+2];
+				allOutside = d < 0.0f;
+			}
+			
+			if (allOutside) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	// Records the number of faces drawn in a frame.
+	public synchronized void countFrame(int drawnFaces) {
+		frameCnt++;
+		drawnFaceCnt += drawnFaces;
+	}
+	
+	public synchronized long getFrameCount() {
+		return frameCnt;
+	}
+	
+	public synchronized float getAverageFacesPerFrame() {
+		return frameCnt == 0 ? 0.0f : (float) drawnFaceCnt/frameCnt;
+	}
+}
@@ -19,7 +19,10 @@
 
 package org.openpanodroid;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -28,18 +31,22 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.openpanodroid.flickrapi.FlickrImageInfo;
+import org.openpanodroid.flickrapi.FlickrImageInfoCodec;
 import org.openpanodroid.flickrapi.FlickrPhotoInfoQuery;
 import org.openpanodroid.flickrapi.FlickrPhotoInfoRequestor;
-import org.openpanodroid.flickrapi.FlickrPhotoQuery;
 import org.openpanodroid.flickrapi.FlickrPhotoRequestor;
+import org.openpanodroid.flickrapi.FlickrSearchIndex;
 import org.openpanodroid.flickrapi.FlickrPhotoRequestor.SortCriteria;
 import org.openpanodroid.rest.BitmapQuery;
 import org.openpanodroid.rest.RESTQuery;
 import org.openpanodroid.rest.RESTRequestor;
 import org.openpanodroid.rest.RESTRequestorBitmap;
 import org.openpanodroid.rest.RESTResponse;
+import org.openpanodroid.rest.ResponseCache;
 
 import junit.framework.Assert;
 
@@ -51,12 +58,14 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -89,9 +98,20 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 	private final static String IMG_INFO_KEY = "imageInfo";
 	private final static String THUMBNAILS_KEY = "thumbnails";
 	private final static String CURRENT_PAGE_KEY ="currentPage";
+	private final static String SEEN_CNT_KEY = "seenCnt";
+	private final static String PASSED_CNT_KEY = "passedCnt";
+	private final static String RESPONSE_CACHE_DIR = "responses";
 
 	private static final float THUMBNAIL_WIDTH_ABSOLUTE = 25; // [mm]
-	private static final int THUMBNAIL_WIDTH_PIXEL = 240; // [px]
+	
+	// Thumbnails arriving within this interval are shown with a single update
+	// of the list (roughly one display frame).
+	private static final int THUMBNAIL_UPDATE_INTERVAL = 16; // [ms]
+	
+	// All updates of the search index run on this thread, so they are applied in 
+	// the order they were issued (also across re-created activities). Before 
+	// Honeycomb, AsyncTasks run in parallel.
+	private static final ExecutorService INDEX_EXECUTOR = Executors.newSingleThreadExecutor();
 	
 	private Button buttonSearch;
 	
@@ -106,22 +126,33 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 	
 	private ImageInfoAdapter imageInfoAdapter;
 	
+	private int thumbnailWidth; // [px]
+	
+	// Positions of thumbnails that arrived since the last update of the list.
+	private Set<Integer> arrivedThumbnails = new HashSet<Integer>();
+	private boolean thumbnailUpdatePending = false;
+	
+	// Number of rows bound by the adapter since bindCntStartTime.
+	private int bindCnt = 0;
+	private long bindCntStartTime = 0;
+	
 	private ProgressDialog waitSearchDialog;
 	
 	private FlickrPhotoInfoRequestor photoInfoRequestor;
 	private PhotoInfoMsgHandler photoInfoMsgHandler;
 	private FlickrPhotoInfoQuery photoInfoQuery;
 	
-	private QueryMsgHandler queryMsgHandler;
-	private FlickrPhotoQuery photoQuery;
-	private FlickrPhotoRequestor photosRequestor;
+	private FlickrPanoSearchDriver searchDriver;
+	
+	private FlickrSearchIndex searchIndex;
+	private String searchKey;
+	private LoadIndexTask loadIndexTask = null;
+	// IDs of all images in imgInfos.
+	private Set<String> shownIds = new HashSet<String>();
 	
 	private FlickrImageInfo selectedImageInfo;
 	
 	private SearchParameters searchParameters;
-	private int currentPage;
-	private int tryCnt;
-	private int resultCnt;
 	
 	
 	private OnClickListener searchButtonClickHandler = new OnClickListener() {
@@ -139,36 +170,155 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 		}
 	}
 	
-	private class QueryMsgHandler extends Handler {
+	private class SearchListener implements FlickrPanoSearchDriver.Listener {
 		@Override
-		public void handleMessage(Message msg) {
-			RESTResponse response;
+		public int onNewImages(List<FlickrImageInfo> images) {
+			filterImageInfos(images);
+			removeShownImages(images);
 			
-			switch (msg.what) {
-			case FlickrPhotoRequestor.RESPONSE_QUERY_FINISHED :
-				Log.i(LOG_TAG, "Received query response");
-				Assert.assertTrue(msg.obj instanceof RESTResponse);
-				response = (RESTResponse) msg.obj;
-				Assert.assertTrue(response != null);
-				Assert.assertTrue(response.result instanceof List<?>);
-				List<FlickrImageInfo> imgList = (List<FlickrImageInfo>) response.result;
-				Assert.assertTrue(imgList != null);
-				processNewImages(imgList);
-				break;
-			case FlickrPhotoRequestor.RESPONSE_QUERY_FAILED :
-				Log.e(LOG_TAG, "Query failed");
-				response = (RESTResponse) msg.obj;
-				Assert.assertTrue(response != null);
+			for (Iterator<FlickrImageInfo> it = images.iterator(); it.hasNext(); ) {
+				FlickrImageInfo imageInfo = it.next();
+				imgInfos.add(imageInfo);
+				thumbnails.add(null);
+				shownIds.add(imageInfo.id);
+			}
+			
+			if (images.size() > 0) {
+				final List<FlickrImageInfo> newImages = new ArrayList<FlickrImageInfo>(images);
+				new IndexUpdateTask() {
+					@Override
+					protected void update(FlickrSearchIndex index) {
+						index.appendImages(searchKey, newImages);
+					}
+				}.execute();
+				
+				// Show the first panoramas (and load their thumbnails) while the 
+				// search is still going on.
 				waitSearchDialog.dismiss();
+				imageInfoAdapter.notifyDataSetChanged();
+			}
+			
+			return images.size();
+		}
+		
+		@Override
+		public void onSearchFinished(int resultCnt) {
+			waitSearchDialog.dismiss();
+			storeSearchState();
+			
+			if (resultCnt == 0) {
+				// Found no results in this search iteration.
+				if (imgInfos.size() == 0) {
+					// Found no images at all. Quit activity.
+					UIUtilities.showAlert(FlickrPanoListActivity.this, null, getString(R.string.noImages), new AlertListener());
+				} else {
+					// Found no further images. Disable further search.
+					buttonSearch.setEnabled(false);
+					UIUtilities.showAlert(FlickrPanoListActivity.this, null, getString(R.string.noMoreImages));
+				}
+			} else {
+				// Found some images (maybe less than requested). Allow for further 
+				// search requests.
+				buttonSearch.setEnabled(true);
+			}
+		}
+		
+		@Override
+		public void onSearchFailed(String errorMsg) {
+			Log.e(LOG_TAG, "Query failed");
+			waitSearchDialog.dismiss();
+			String msg = getString(R.string.photoQueryFailed);
+			if (errorMsg != null) {
+				msg = msg + " (" + errorMsg + ")";
+			}
+			
+			if (imgInfos.size() > 0) {
+				// Images found before (e.g., loaded from the search index) can 
+				// still be browsed.
+				buttonSearch.setEnabled(true);
+				UIUtilities.showAlert(FlickrPanoListActivity.this, null, msg);
+			} else {
 				ClickListenerErrorDialog clickListener = new ClickListenerErrorDialog();
-				String errorMsg = getString(R.string.photoQueryFailed);
-				if (response.errorMsg != null) {
-					errorMsg = errorMsg + " (" + errorMsg + ")";
+				UIUtilities.showAlert(FlickrPanoListActivity.this, null, msg, clickListener);
+			}
+		}
+		
+		@Override
+		public void onRefreshResult(List<FlickrImageInfo> images) {
+			filterImageInfos(images);
+			removeShownImages(images);
+			
+			if (images.size() == 0) {
+				return;
+			}
+			
+			Log.i(LOG_TAG, "Found " + images.size() + " new images on first page");
+			
+			insertImagesAtTop(images);
+			
+			final List<FlickrImageInfo> newImages = new ArrayList<FlickrImageInfo>(images);
+			new IndexUpdateTask() {
+				@Override
+				protected void update(FlickrSearchIndex index) {
+					index.prependImages(searchKey, newImages);
 				}
-				UIUtilities.showAlert(FlickrPanoListActivity.this, null, errorMsg, clickListener);
-				break;
-			default :
-				super.handleMessage(msg);
+			}.execute();
+		}
+	}
+	
+	// Loads the results of an earlier search with the same parameters.
+	private class LoadIndexTask extends AsyncTask<Void, Void, FlickrSearchIndex.SearchState> {
+		@Override
+		protected FlickrSearchIndex.SearchState doInBackground(Void... params) {
+			try {
+				return searchIndex.load(searchKey);
+			} catch (SQLiteException ex) {
+				Log.e(LOG_TAG, "Could not load search index");
+				return null;
+			}
+		}
+		
+		@Override
+		protected void onPostExecute(FlickrSearchIndex.SearchState state) {
+			loadIndexTask = null;
+			
+			if (isFinishing()) {
+				return;
+			}
+			
+			if (state == null || state.images.size() == 0) {
+				startPhotoSearch();
+				return;
+			}
+			
+			for (FlickrImageInfo imageInfo : state.images) {
+				imgInfos.add(imageInfo);
+				thumbnails.add(null);
+				shownIds.add(imageInfo.id);
+			}
+			imageInfoAdapter.notifyDataSetChanged();
+			
+			searchDriver.restoreState(state.lastPage, state.seenCnt, state.passedCnt);
+			buttonSearch.setEnabled(true);
+			
+			// Look for photos uploaded since the results were stored.
+			searchDriver.refresh();
+		}
+	}
+	
+	private abstract class IndexUpdateTask implements Runnable {
+		abstract protected void update(FlickrSearchIndex index);
+		
+		public void execute() {
+			INDEX_EXECUTOR.execute(this);
+		}
+		
+		@Override
+		public void run() {
+			try {
+				update(searchIndex);
+			} catch (SQLiteException ex) {
+				Log.e(LOG_TAG, "Could not update search index");
 			}
 		}
 	}
@@ -187,7 +337,11 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 				Bitmap bitmap = (Bitmap) response.result;
 			    int position = queryToPosition.get(response.query);
 			    thumbnails.set(position, bitmap);
-				imageInfoAdapter.notifyDataSetChanged();
+			    arrivedThumbnails.add(position);
+			    if (!thumbnailUpdatePending) {
+			    	thumbnailUpdatePending = true;
+			    	postDelayed(thumbnailUpdater, THUMBNAIL_UPDATE_INTERVAL);
+			    }
 				break;
 			case RESTRequestor.RESPONSE_QUERY_FAILED :
 				Log.e(LOG_TAG, "Thumbnail query failed");
@@ -200,6 +354,36 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 		}
 	}
 	
+	// Shows the thumbnails that have arrived since the last update. Only the 
+	// image views of visible rows are updated; other rows get their thumbnail 
+	// when they are bound.
+	private Runnable thumbnailUpdater = new Runnable() {
+		@Override
+		public void run() {
+			thumbnailUpdatePending = false;
+			
+			ListView lv = getListView();
+			int firstPosition = lv.getFirstVisiblePosition();
+			int lastPosition = lv.getLastVisiblePosition();
+			
+			for (Integer position : arrivedThumbnails) {
+				if (position < firstPosition || position > lastPosition) {
+					continue;
+				}
+				
+				View row = lv.getChildAt(position - firstPosition);
+				if (row == null) {
+					continue;
+				}
+				
+				ImageView thumbnail = (ImageView) row.findViewById(R.id.thumbnail);
+				thumbnail.setImageBitmap(thumbnails.get(position));
+			}
+			
+			arrivedThumbnails.clear();
+		}
+	};
+	
 	private class PhotoInfoMsgHandler extends Handler {
 		@Override
 		public void handleMessage(Message msg) {
@@ -262,6 +446,8 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 			Assert.assertTrue(imgInfos.size() > position);
 			FlickrImageInfo info = imgInfos.get(position);
 			
+			countBind();
+			
 			if (view == null) {
                 LayoutInflater vi = (LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE);
                 view = vi.inflate(R.layout.panolistitem, null);
@@ -305,51 +491,6 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 	public FlickrPanoListActivity() {
 	}
 
-	private void processNewImages(List<FlickrImageInfo> images) {
-		filterImageInfos(images);
-		
-		for (Iterator<FlickrImageInfo> it = images.iterator(); it.hasNext(); ) {
-			imgInfos.add(it.next());
-			thumbnails.add(null);
-		}
-		
-		resultCnt += images.size();
-		
-		if (resultCnt < REQUIRED_RESULTS_PER_SEARCH) {
-			// Still haven't found enough images in this iteration.
-			
-			if (tryCnt >= MAX_TRY_CNT) {
-				// Reached maximum try count. Give up.
-				if (resultCnt == 0) {
-					// Found no results in this search iteration.
-					if (imgInfos.size() == 0) {
-						// Found no images at all. Quit activity.
-						waitSearchDialog.dismiss();
-						UIUtilities.showAlert(FlickrPanoListActivity.this, null, getString(R.string.noImages), new AlertListener());
-					} else {
-						// Found no further images. Disable further search.
-						waitSearchDialog.dismiss();
-						buttonSearch.setEnabled(false);
-						imageInfoAdapter.notifyDataSetChanged();
-						UIUtilities.showAlert(FlickrPanoListActivity.this, null, getString(R.string.noMoreImages));
-					}
-				} else {
-					// Found less than requested number of images, but more than 0. 
-					// Allow for further search requests.
-					waitSearchDialog.dismiss();
-					imageInfoAdapter.notifyDataSetChanged();	
-				}
-			} else {
-				// Still have tries left. Let's try again.
-				continuePhotoSearch();
-			}
-		} else {
-			// Found enough images in this iteration.
-			waitSearchDialog.dismiss();
-			imageInfoAdapter.notifyDataSetChanged();
-		}
-	}
-	
 	private void startPanoViewerActivity() {
 		Assert.assertTrue(selectedImageInfo != null);
 		Log.i(LOG_TAG, "Starting PanoViewerActivity");
@@ -378,6 +519,78 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
     	waitSearchDialog.show();
     }
 	
+	private void countBind() {
+		bindCnt++;
+		
+		long now = SystemClock.elapsedRealtime();
+		if (now - bindCntStartTime >= 1000) {
+			if (bindCntStartTime > 0) {
+				Log.i(LOG_TAG, "List binds: " + bindCnt + " in " + (now - bindCntStartTime) + " ms");
+			}
+			bindCnt = 0;
+			bindCntStartTime = now;
+		}
+	}
+	
+	private void removeShownImages(List<FlickrImageInfo> images) {
+		for (Iterator<FlickrImageInfo> it = images.iterator(); it.hasNext(); ) {
+			if (shownIds.contains(it.next().id)) {
+				it.remove();
+			}
+		}
+	}
+	
+	private void insertImagesAtTop(List<FlickrImageInfo> images) {
+		int cnt = images.size();
+		
+		imgInfos.addAll(0, images);
+		for (int i = 0; i < cnt; i++) {
+			thumbnails.add(0, null);
+		}
+		for (FlickrImageInfo imageInfo : images) {
+			shownIds.add(imageInfo.id);
+		}
+		
+		// Positions of pending thumbnails have moved.
+		for (Map.Entry<RESTQuery, Integer> entry : queryToPosition.entrySet()) {
+			entry.setValue(entry.getValue() + cnt);
+		}
+		Set<Integer> movedImages = new HashSet<Integer>();
+		for (Integer position : requestedImages) {
+			movedImages.add(position + cnt);
+		}
+		requestedImages = movedImages;
+		
+		// All rows are bound again anyway.
+		arrivedThumbnails.clear();
+		
+		imageInfoAdapter.notifyDataSetChanged();
+	}
+	
+	private void storeSearchState() {
+		final int lastPage = searchDriver.getLastConsumedPage();
+		final int seenCnt = searchDriver.getSeenCount();
+		final int passedCnt = searchDriver.getPassedCount();
+		
+		new IndexUpdateTask() {
+			@Override
+			protected void update(FlickrSearchIndex index) {
+				index.updateState(searchKey, lastPage, seenCnt, passedCnt);
+			}
+		}.execute();
+	}
+	
+	// Returns the URL of the smallest image that is at least as wide as a thumbnail.
+	private URL getThumbnailURL(FlickrImageInfo imageInfo) {
+		if (thumbnailWidth <= 100) {
+			return imageInfo.getImage100URL();
+		} else if (thumbnailWidth <= 240) {
+			return imageInfo.getImage240();
+		} else {
+			return imageInfo.getImage500URL();
+		}
+	}
+	
 	private void loadThumbnail(int position) {
 		if (requestedImages.contains(new Integer(position))) {
 			// We have already requested this image. Response is pending.
@@ -388,7 +601,7 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 		
 		requestedImages.add(new Integer(position));
 		
-		BitmapQuery query = new BitmapQuery(thumbnailMsgHandler, imgInfos.get(position).getImage240());
+		BitmapQuery query = new BitmapQuery(thumbnailMsgHandler, getThumbnailURL(imgInfos.get(position)));
 		queryToPosition.put(query, new Integer(position));
 		bitmapRequestor.addQuery(query);
 	}
@@ -398,19 +611,29 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.panolistlayout);
 
+		// Flickr API responses survive restarts of the activity and the application.
+		ResponseCache.install(new File(getCacheDir(), RESPONSE_CACHE_DIR));
+		
 		Intent intent = getIntent();
 		Serializable data = intent.getSerializableExtra(SEARCH_PARAMETERS);
 		Assert.assertTrue(data instanceof SearchParameters);
 		searchParameters = (SearchParameters) data;
 
 	    if (savedInstanceState != null) {
-			imgInfos = savedInstanceState.getParcelableArrayList(IMG_INFO_KEY);
-			thumbnails = savedInstanceState.getParcelableArrayList(THUMBNAILS_KEY);
-			currentPage = savedInstanceState.getInt(CURRENT_PAGE_KEY);
+			try {
+				imgInfos = FlickrImageInfoCodec.decode(savedInstanceState.getByteArray(IMG_INFO_KEY));
+				thumbnails = savedInstanceState.getParcelableArrayList(THUMBNAILS_KEY);
+			} catch (IOException ex) {
+				Log.e(LOG_TAG, "Could not restore image infos: " + ex.getMessage());
+				imgInfos = new ArrayList<FlickrImageInfo>();
+				thumbnails = new ArrayList<Bitmap>();
+			}
+			for (FlickrImageInfo imageInfo : imgInfos) {
+				shownIds.add(imageInfo.id);
+			}
 		} else {
 			imgInfos = new ArrayList<FlickrImageInfo>();
 			thumbnails = new ArrayList<Bitmap>();
-			currentPage = 0;
 		}
 	    
         imageInfoAdapter = new ImageInfoAdapter(this, R.layout.panolistitem, imgInfos);
@@ -422,17 +645,12 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
         buttonSearch = (Button) findViewById(R.id.buttonFurtherResults);
         buttonSearch.setOnClickListener(searchButtonClickHandler);
         
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inDither = false;
-        
-        // Scale the thumbnail to an absolute with of THUMBNAIL_WIDTH_ABSOLUTE [mm].
+        // Decode the thumbnail to an absolute with of THUMBNAIL_WIDTH_ABSOLUTE [mm].
         DisplayMetrics metrics = new DisplayMetrics();
         getWindowManager().getDefaultDisplay().getMetrics(metrics);
-        options.inDensity = (int) ((float) THUMBNAIL_WIDTH_PIXEL / (THUMBNAIL_WIDTH_ABSOLUTE/(10*2.54)) + 0.5f);
-        options.inScaled = true; 
-        options.inTargetDensity = metrics.densityDpi;
+        thumbnailWidth = (int) (THUMBNAIL_WIDTH_ABSOLUTE/(10*2.54f) * metrics.densityDpi + 0.5f);
         
-        bitmapRequestor = new RESTRequestorBitmap(options);
+        bitmapRequestor = new RESTRequestorBitmap(new ThumbnailDecoder(thumbnailWidth, metrics.densityDpi));
 		bitmapRequestor.start();
 		thumbnailMsgHandler = new ThumbnailMsgHandler();
 
@@ -440,24 +658,33 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 		photoInfoRequestor.start();
 		photoInfoMsgHandler = new PhotoInfoMsgHandler();
 		
-	    queryMsgHandler = new QueryMsgHandler();
-	    photosRequestor = new FlickrPhotoRequestor();
-	    photosRequestor.start();
+	    searchIndex = FlickrSearchIndex.getInstance(this);
+	    searchDriver = createSearchDriver();
 	    
-	    if (savedInstanceState == null) {
-	    	startPhotoSearch();
+	    if (savedInstanceState != null) {
+	    	searchDriver.restoreState(savedInstanceState.getInt(CURRENT_PAGE_KEY), 
+	    			savedInstanceState.getInt(SEEN_CNT_KEY), savedInstanceState.getInt(PASSED_CNT_KEY));
+	    } else {
+	    	// Show the results of an earlier search first (if any).
+	    	buttonSearch.setEnabled(false);
+	    	loadIndexTask = new LoadIndexTask();
+	    	loadIndexTask.execute();
 	    }
 	}
 	
     @Override
     public void onDestroy() {
     	bitmapRequestor.terminate();
+    	thumbnailMsgHandler.removeCallbacks(thumbnailUpdater);
     	photoInfoRequestor.terminate();
-    	photosRequestor.terminate();
+    	searchDriver.terminate();
+    	if (loadIndexTask != null) {
+    		loadIndexTask.cancel(false);
+    	}
     	super.onDestroy();
     }
     
-    private FlickrPhotoQuery createPhotoQuery() {
+    private FlickrPanoSearchDriver createSearchDriver() {
     	List<String> searchTags = new LinkedList<String>();
 		for (int i = 0; i < searchParameters.tags.length; i++) {
 			searchTags.add(searchParameters.tags[i]);
@@ -476,39 +703,30 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 			Assert.fail();
 		}
 		
-		Log.i(LOG_TAG, "Requesting image page " + Integer.toString(currentPage));
-		FlickrPhotoQuery query = new FlickrPhotoQuery(queryMsgHandler, searchTags, sortCritertia, currentPage, RESULTS_PER_PAGE);
-    	
-		return query;
+		searchKey = FlickrSearchIndex.getSearchKey(searchTags, sortCritertia.name(), searchParameters.includeLowResImages);
+		
+		return new FlickrPanoSearchDriver(new SearchListener(), searchTags, sortCritertia, 
+				RESULTS_PER_PAGE, REQUIRED_RESULTS_PER_SEARCH, MAX_TRY_CNT);
     }
     
     private void startPhotoSearch() {
-		currentPage++;
-		tryCnt = 1;
-		resultCnt = 0;
+		// The search may go on after the first results have been shown. 
+		buttonSearch.setEnabled(false);
 				
-    	photoQuery = createPhotoQuery();
-		photosRequestor.addQuery(photoQuery);
+    	searchDriver.search();
 		
 		waitSearchDialog = new ProgressDialog(FlickrPanoListActivity.this);
     	waitSearchDialog.setMessage(getString(R.string.imageSearch));
     	waitSearchDialog.setCancelable(false);
     	waitSearchDialog.setButton(ProgressDialog.BUTTON_NEGATIVE, getString(R.string.cancel), new DialogInterface.OnClickListener() {
     		public void onClick(DialogInterface dialog, int id) {
-    			photosRequestor.cancelQuery(photoQuery);
+    			searchDriver.cancel();
+    			buttonSearch.setEnabled(true);
     		}
     	});
     	waitSearchDialog.show();
     }
     
-    private void continuePhotoSearch() {
-    	currentPage++;
-    	tryCnt++;
-    	
-    	photoQuery = createPhotoQuery();
-		photosRequestor.addQuery(photoQuery);
-    }
-    
     private boolean isOriginalFormatCompatible(FlickrImageInfo imageInfo) {
     	if (imageInfo == null || imageInfo.originalFormat == null) {
     		return false;
@@ -535,23 +753,17 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
 			
 			if (imageInfo.getOriginalURL() == null || imageInfo.originalSize == null) {
 				// Just to be sure: if there is original image info, it must be complete.
-				imageInfo.originalSecret = null;
-				imageInfo.originalFormat = null;
-				imageInfo.originalSize = null;
+				imageInfo.clearOriginal();
 			}
 			
 			if (imageInfo.getOriginalURL() != null && !isOriginalFormatCompatible(imageInfo)) {
 				// Original image format not compatible.
-				imageInfo.originalSecret = null;
-				imageInfo.originalFormat = null;
-				imageInfo.originalSize = null;
+				imageInfo.clearOriginal();
 			}
 			
 			if (imageInfo.originalSize != null && imageInfo.originalSize.width > GlobalConstants.MAX_PANO_IMAGE_WIDTH) {
 				// Original image size too large.
-				imageInfo.originalSecret = null;
-				imageInfo.originalFormat = null;
-				imageInfo.originalSize = null;
+				imageInfo.clearOriginal();
 			}
 			
 			if (!searchParameters.includeLowResImages && (imageInfo.originalSize == null || imageInfo.originalSize.width < HIGH_QUALITY_MIN_WIDTH )) {
@@ -568,9 +780,11 @@ public class FlickrPanoListActivity extends ListActivity implements OnItemClickL
     	
     	super.onSaveInstanceState(outState);
 	
-    	outState.putParcelableArrayList(IMG_INFO_KEY, imgInfos);
+    	outState.putByteArray(IMG_INFO_KEY, FlickrImageInfoCodec.encode(imgInfos));
     	outState.putParcelableArrayList(THUMBNAILS_KEY, thumbnails);
-    	outState.putInt(CURRENT_PAGE_KEY, currentPage);
+    	outState.putInt(CURRENT_PAGE_KEY, searchDriver.getLastConsumedPage());
+    	outState.putInt(SEEN_CNT_KEY, searchDriver.getSeenCount());
+    	outState.putInt(PASSED_CNT_KEY, searchDriver.getPassedCount());
 	}
 	
 	@Override
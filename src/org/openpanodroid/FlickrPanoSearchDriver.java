@@ -0,0 +1,403 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.openpanodroid.flickrapi.FlickrImageInfo;
+import org.openpanodroid.flickrapi.FlickrPhotoQuery;
+import org.openpanodroid.flickrapi.FlickrPhotoRequestor;
+import org.openpanodroid.flickrapi.FlickrPhotoRequestor.SortCriteria;
+import org.openpanodroid.rest.RESTRequestor;
+import org.openpanodroid.rest.RESTResponse;
+
+import android.os.Handler;
+import android.os.Message;
+import android.util.Log;
+
+// Drives the search for panoramas over several result pages. Only a fraction 
+// of the photos of a page passes the panorama filter of the client. The 
+// driver estimates this fraction from the pages seen so far and fetches as 
+// many pages concurrently as are likely needed to find the required number
+// of panoramas in one round-trip. 
+//
+// Pages are passed to the listener in page order. When enough panoramas have 
+// been found, pages still in flight are cancelled, and the next search 
+// continues after the last page passed to the listener.
+//
+// All methods must be called from the UI thread.
+public class FlickrPanoSearchDriver {
+	private static final String LOG_TAG = FlickrPanoSearchDriver.class.getSimpleName();
+	
+	// Number of requestor threads, i.e., the maximum number of pages fetched concurrently.
+	private static final int MAX_CONCURRENT_PAGES = 3;
+	
+	// Pass rate assumed before any pages have been seen. The prior counts as 
+	// much as PRIOR_WEIGHT photos.
+	private static final float PRIOR_PASS_RATE = 0.2f;
+	private static final int PRIOR_WEIGHT = 50;
+	
+	// The estimated pass rate is only an average. Fetch enough pages to find 
+	// this many times the missing number of panoramas.
+	private static final float FETCH_MARGIN = 1.5f;
+	
+	public interface Listener {
+		// Called with photos that have not been passed to the listener before.
+		// Returns the number of photos accepted by the listener.
+		public int onNewImages(List<FlickrImageInfo> images);
+		
+		// Called when the search has finished. resultCnt is the number of photos 
+		// accepted during this search.
+		public void onSearchFinished(int resultCnt);
+		
+		public void onSearchFailed(String errorMsg);
+		
+		// Called with the current first page after refresh() has been called.
+		public void onRefreshResult(List<FlickrImageInfo> images);
+	}
+	
+	private static class PageFetch {
+		public int pageNo;
+		public FlickrPhotoQuery query;
+		public FlickrPhotoRequestor requestor;
+		public List<FlickrImageInfo> result = null;
+		// Number of photos of this page already passed to the listener.
+		public int consumedCnt = 0;
+		
+		public PageFetch(int pageNo, FlickrPhotoQuery query, FlickrPhotoRequestor requestor) {
+			this.pageNo = pageNo;
+			this.query = query;
+			this.requestor = requestor;
+		}
+	}
+	
+	private Listener listener;
+	private List<String> tags;
+	private SortCriteria sortCriteria;
+	private int resultsPerPage;
+	private int requiredResults;
+	private int maxPages;
+	
+	private FlickrPhotoRequestor[] requestors;
+	private QueryMsgHandler queryMsgHandler;
+	
+	// Pages in flight or waiting for delivery, sorted by page number.
+	private LinkedList<PageFetch> pendingPages = new LinkedList<PageFetch>();
+	private FlickrPhotoQuery refreshQuery = null;
+	
+	private int lastConsumedPage;
+	private int nextPage;
+	
+	private boolean searching = false;
+	private boolean exhausted = false;
+	private boolean terminated = false;
+	private int searchResultCnt;
+	private int searchPageCnt;
+	
+	// Photos passed to the listener and photos accepted by the listener (over 
+	// all searches).
+	private int seenCnt = 0;
+	private int passedCnt = 0;
+	
+	private class QueryMsgHandler extends Handler {
+		@Override
+		public void handleMessage(Message msg) {
+			if (terminated || !(msg.obj instanceof RESTResponse)) {
+				super.handleMessage(msg);
+				return;
+			}
+			
+			RESTResponse response = (RESTResponse) msg.obj;
+			
+			if (response.query == refreshQuery) {
+				handleRefreshResponse(msg.what, response);
+				return;
+			}
+			
+			PageFetch page = findPage(response);
+			if (page == null) {
+				// Late response of a cancelled page.
+				return;
+			}
+			
+			switch (msg.what) {
+			case RESTRequestor.RESPONSE_PARTIAL_RESULT :
+				if (page == pendingPages.getFirst()) {
+					deliver(page, (List<FlickrImageInfo>) response.result, msg.arg1);
+				}
+				break;
+			case RESTRequestor.RESPONSE_QUERY_FINISHED :
+				Assert.assertTrue(response.result instanceof List<?>);
+				page.result = (List<FlickrImageInfo>) response.result;
+				if (page.result.size() == 0) {
+					exhausted = true;
+				}
+				deliverFinishedPages();
+				break;
+			case RESTRequestor.RESPONSE_QUERY_FAILED :
+				Log.e(LOG_TAG, "Query for page " + page.pageNo + " failed");
+				cancelPendingPages();
+				searching = false;
+				listener.onSearchFailed(response.errorMsg);
+				break;
+			default :
+				super.handleMessage(msg);
+			}
+		}
+	}
+	
+	public FlickrPanoSearchDriver(Listener listener, List<String> tags, SortCriteria sortCriteria, 
+			int resultsPerPage, int requiredResults, int maxPages) {
+		this.listener = listener;
+		this.tags = tags;
+		this.sortCriteria = sortCriteria;
+		this.resultsPerPage = resultsPerPage;
+		this.requiredResults = requiredResults;
+		this.maxPages = maxPages;
+		
+		lastConsumedPage = 0;
+		nextPage = 1;
+		
+		queryMsgHandler = new QueryMsgHandler();
+		
+		requestors = new FlickrPhotoRequestor[MAX_CONCURRENT_PAGES];
+		for (int i = 0; i < requestors.length; i++) {
+			// XML stays the default until the JSON mode has been measured to be 
+			// faster on devices (FlickrPhotoRequestor logs bytes and parse time 
+			// for both formats).
+			requestors[i] = new FlickrPhotoRequestor();
+			requestors[i].start();
+		}
+	}
+	
+	public void terminate() {
+		terminated = true;
+		cancelPendingPages();
+		if (refreshQuery != null) {
+			requestors[0].cancelQuery(refreshQuery);
+		}
+		
+		for (int i = 0; i < requestors.length; i++) {
+			requestors[i].terminate();
+		}
+	}
+	
+	// Restores the state of a previous driver (e.g., after the activity was 
+	// re-created).
+	public void restoreState(int lastConsumedPage, int seenCnt, int passedCnt) {
+		Assert.assertFalse(searching);
+		
+		this.lastConsumedPage = lastConsumedPage;
+		nextPage = lastConsumedPage+1;
+		this.seenCnt = seenCnt;
+		this.passedCnt = passedCnt;
+	}
+	
+	// Number of the last page passed to the listener completely.
+	public int getLastConsumedPage() {
+		return lastConsumedPage;
+	}
+	
+	public int getSeenCount() {
+		return seenCnt;
+	}
+	
+	public int getPassedCount() {
+		return passedCnt;
+	}
+	
+	public boolean isSearching() {
+		return searching;
+	}
+	
+	public void search() {
+		Assert.assertFalse(searching);
+		
+		searching = true;
+		searchResultCnt = 0;
+		searchPageCnt = 0;
+		exhausted = false;
+		
+		fetchPages();
+	}
+	
+	// Cancels the running search. The listener is not notified.
+	public void cancel() {
+		cancelPendingPages();
+		searching = false;
+	}
+	
+	// Fetches the first page again, e.g., to find photos uploaded since the 
+	// results were stored. The page does not count as consumed.
+	public void refresh() {
+		if (refreshQuery != null) {
+			return;
+		}
+		
+		refreshQuery = new FlickrPhotoQuery(queryMsgHandler, tags, sortCriteria, 1, resultsPerPage);
+		requestors[0].addQuery(refreshQuery);
+	}
+	
+	private void handleRefreshResponse(int what, RESTResponse response) {
+		switch (what) {
+		case RESTRequestor.RESPONSE_QUERY_FINISHED :
+			refreshQuery = null;
+			Assert.assertTrue(response.result instanceof List<?>);
+			listener.onRefreshResult((List<FlickrImageInfo>) response.result);
+			break;
+		case RESTRequestor.RESPONSE_QUERY_FAILED :
+			// Not critical (e.g., offline). The stored results are still shown.
+			refreshQuery = null;
+			Log.i(LOG_TAG, "Refreshing first page failed");
+			break;
+		}
+	}
+	
+	private float estimatePassRate() {
+		return (passedCnt + PRIOR_PASS_RATE*PRIOR_WEIGHT) / (seenCnt + PRIOR_WEIGHT);
+	}
+	
+	private void fetchPages() {
+		int missingCnt = requiredResults - searchResultCnt;
+		float passRate = estimatePassRate();
+		float expectedPerPage = passRate * resultsPerPage;
+		
+		int pageCnt = (int) Math.ceil(FETCH_MARGIN*missingCnt / Math.max(expectedPerPage, 1.0f));
+		pageCnt = Math.max(pageCnt, 1);
+		pageCnt = Math.min(pageCnt, maxPages - searchPageCnt);
+		pageCnt = Math.min(pageCnt, requestors.length - pendingPages.size());
+		
+		Log.i(LOG_TAG, "Estimated pass rate " + passRate + "; fetching " + pageCnt + 
+				" page(s) starting at page " + nextPage);
+		
+		for (int i = 0; i < pageCnt; i++) {
+			FlickrPhotoRequestor requestor = getIdleRequestor();
+			Assert.assertTrue(requestor != null);
+			
+			FlickrPhotoQuery query = new FlickrPhotoQuery(queryMsgHandler, tags, sortCriteria, nextPage, resultsPerPage);
+			pendingPages.add(new PageFetch(nextPage, query, requestor));
+			requestor.addQuery(query);
+			
+			nextPage++;
+			searchPageCnt++;
+		}
+	}
+	
+	private FlickrPhotoRequestor getIdleRequestor() {
+		for (int i = 0; i < requestors.length; i++) {
+			boolean busy = false;
+			for (PageFetch page : pendingPages) {
+				if (page.requestor == requestors[i]) {
+					busy = true;
+					break;
+				}
+			}
+			
+			if (!busy) {
+				return requestors[i];
+			}
+		}
+		
+		return null;
+	}
+	
+	private PageFetch findPage(RESTResponse response) {
+		for (PageFetch page : pendingPages) {
+			if (page.query == response.query) {
+				return page;
+			}
+		}
+		
+		return null;
+	}
+	
+	// Passes the photos of the given page that have not been passed before to 
+	// the listener. offset is the position of the first given photo within the page.
+	private void deliver(PageFetch page, List<FlickrImageInfo> images, int offset) {
+		if (offset > page.consumedCnt) {
+			// Photos between the consumed ones and this part are missing (e.g., 
+			// because the page only became the first page after earlier parts had 
+			// been dropped). They are delivered with the complete page.
+			return;
+		}
+		
+		int newCnt = offset + images.size() - page.consumedCnt;
+		if (newCnt <= 0) {
+			return;
+		}
+		
+		List<FlickrImageInfo> newImages = new LinkedList<FlickrImageInfo>(images.subList(images.size()-newCnt, images.size()));
+		page.consumedCnt += newCnt;
+		
+		int acceptedCnt = listener.onNewImages(newImages);
+		
+		seenCnt += newCnt;
+		passedCnt += acceptedCnt;
+		searchResultCnt += acceptedCnt;
+	}
+	
+	// Passes finished pages to the listener in page order.
+	private void deliverFinishedPages() {
+		while (pendingPages.size() > 0 && pendingPages.getFirst().result != null) {
+			PageFetch page = pendingPages.removeFirst();
+			deliver(page, page.result, 0);
+			lastConsumedPage = page.pageNo;
+			
+			if (searchResultCnt >= requiredResults) {
+				// Pages fetched in advance are not needed anymore. 
+				finishSearch();
+				return;
+			}
+		}
+		
+		if (pendingPages.size() == 0) {
+			if (exhausted || searchPageCnt >= maxPages) {
+				finishSearch();
+			} else {
+				fetchPages();
+			}
+		}
+	}
+	
+	private void finishSearch() {
+		cancelPendingPages();
+		searching = false;
+		
+		Log.i(LOG_TAG, "Search finished after " + searchPageCnt + " page(s) with " + searchResultCnt + " results");
+		
+		listener.onSearchFinished(searchResultCnt);
+	}
+	
+	private void cancelPendingPages() {
+		for (Iterator<PageFetch> it = pendingPages.iterator(); it.hasNext(); ) {
+			PageFetch page = it.next();
+			page.requestor.cancelQuery(page.query);
+			it.remove();
+		}
+		
+		// Pages that were fetched but not consumed are requested again by the
+		// next search (most likely from the response cache).
+		nextPage = lastConsumedPage+1;
+	}
+}
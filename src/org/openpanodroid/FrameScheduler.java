@@ -0,0 +1,103 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+// Decides when a GLSurfaceView in RENDERMODE_WHEN_DIRTY has to draw a frame.
+// Whenever the content of the view changes (rotation, zoom, arrival of 
+// textures), invalidate() requests a frame. If a frame is not complete (e.g., 
+// during kinetic rotation or while textures are uploaded on the GL thread), 
+// the renderer requests the next frame right away. Otherwise, no frames are 
+// drawn until the next change.
+//
+// For instrumentation, frames are counted, as well as idle frames, which 
+// neither showed a change nor were requested by the frame before, and 
+// wakeups, i.e., requests after the view had been idle.
+public class FrameScheduler {
+	private static final String LOG_TAG = FrameScheduler.class.getSimpleName();
+	
+	private static final int STATISTICS_INTERVAL = 300; // [frames]
+	
+	private GLSurfaceView view;
+	
+	// Set if the content has changed since the last frame.
+	private boolean isDirty = true;
+	// Set if the last frame requested the next frame.
+	private boolean isContinuous = false;
+	
+	private long frameCnt = 0;
+	private long idleFrameCnt = 0;
+	private long wakeupCnt = 0;
+	
+	public FrameScheduler(GLSurfaceView view) {
+		this.view = view;
+	}
+	
+	// May be called on any thread after the renderer has been set.
+	public void invalidate() {
+		synchronized (this) {
+			if (!isDirty && !isContinuous) {
+				wakeupCnt++;
+			}
+			isDirty = true;
+		}
+		
+		view.requestRender();
+	}
+	
+	// Has to be called by the renderer at the beginning of each frame.
+	public synchronized void onFrameStart() {
+		frameCnt++;
+		if (!isDirty && !isContinuous) {
+			idleFrameCnt++;
+		}
+		isDirty = false;
+	}
+	
+	// Has to be called by the renderer at the end of each frame. If needsNextFrame
+	// is true, the next frame is drawn right away.
+	public void onFrameEnd(boolean needsNextFrame) {
+		synchronized (this) {
+			isContinuous = needsNextFrame;
+			
+			if (frameCnt % STATISTICS_INTERVAL == 0) {
+				Log.i(LOG_TAG, frameCnt + " frames drawn, " + idleFrameCnt + " idle; " + wakeupCnt + " wakeups");
+			}
+		}
+		
+		if (needsNextFrame) {
+			view.requestRender();
+		}
+	}
+	
+	public synchronized long getFrameCount() {
+		return frameCnt;
+	}
+	
+	public synchronized long getIdleFrameCount() {
+		return idleFrameCnt;
+	}
+	
+	public synchronized long getWakeupCount() {
+		return wakeupCnt;
+	}
+}
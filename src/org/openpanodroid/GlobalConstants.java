@@ -21,6 +21,7 @@ package org.openpanodroid;
 
 public class GlobalConstants {
 	public final static float DEFAULT_FOV_DEG = 60.0f;
+	public final static float MIN_FOV_DEG = 20.0f;
+	public final static float MAX_FOV_DEG = 90.0f;
 	public final static int MAX_PANO_IMAGE_WIDTH = 6000;
-	public final static int DEFAULT_MAX_TEXTURE_SIZE = 1024;
 }
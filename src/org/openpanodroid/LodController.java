@@ -0,0 +1,74 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import android.util.Log;
+
+// Selects the level of the tile pyramid for the current field of view. Level -1
+// stands for the base faces. Zooming in switches to a finer level as soon as 
+// the current level does not provide enough details anymore. Zooming out only 
+// switches to a coarser level if the coarser level is clearly sufficient, so 
+// small changes of the field of view don't switch levels back and forth.
+public class LodController {
+	private static final String LOG_TAG = LodController.class.getSimpleName();
+	
+	private static final float HYSTERESIS = 1.2f;
+	
+	private int baseFaceSize;
+	private TilePyramid pyramid;
+	
+	private int level = -1;
+	private int switchCnt = 0;
+	
+	public LodController(int baseFaceSize, TilePyramid pyramid) {
+		this.baseFaceSize = baseFaceSize;
+		this.pyramid = pyramid;
+	}
+	
+	// Returns the level to be shown to display faces of the given size (in pixels).
+	public int selectLevel(int neededFaceSize) {
+		int newLevel = level;
+		
+		while (newLevel < pyramid.getLevelCount()-1 && neededFaceSize > getFaceSize(newLevel)) {
+			newLevel++;
+		}
+		
+		while (newLevel > -1 && HYSTERESIS*neededFaceSize < getFaceSize(newLevel-1)) {
+			newLevel--;
+		}
+		
+		if (newLevel != level) {
+			switchCnt++;
+			Log.i(LOG_TAG, "Switching from level " + level + " to level " + newLevel + " (face size " + 
+					getFaceSize(newLevel) + ", needed " + neededFaceSize + "; " + switchCnt + " switches)");
+			level = newLevel;
+		}
+		
+		return level;
+	}
+	
+	public int getLevel() {
+		return level;
+	}
+	
+	private int getFaceSize(int level) {
+		return level < 0 ? baseFaceSize : pyramid.getLevelSize(level);
+	}
+}
@@ -0,0 +1,135 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps the converted panoramas of viewer activities across configuration 
+// changes (e.g., screen rotation). An activity adds its session to the holder 
+// and saves only the returned handle in its instance state. The next activity 
+// instance gets the session back with this handle instead of restoring (or 
+// even converting) the panorama again.
+//
+// Several viewer activities may be alive at the same time (e.g., a stopped 
+// viewer on the back stack). Each session counts the activities owning it, 
+// and its faces and tiles are only deleted when the last owner is finished.
+//
+// Sessions only live as long as the process. If the process was killed in 
+// between, get() returns null for any handle, and the activity has to fall 
+// back to other means.
+public class PanoSessionHolder {
+	public static final long NO_SESSION = -1;
+	
+	private static PanoSessionHolder instance = null;
+	
+	private Map<Long, Session> sessions = new HashMap<Long, Session>();
+	
+	// Handles of different processes should not collide. Otherwise, an activity
+	// restored in a new process could get the session of another panorama.
+	private long nextHandle = System.currentTimeMillis();
+	
+	public static class Session {
+		public FaceStore faceStore;
+		// Tiles for zooming in (null if the panorama has no more details than the faces).
+		public TilePyramid pyramid;
+		// Number of live activities showing this session.
+		public int ownerCnt = 0;
+		
+		public Session(FaceStore faceStore, TilePyramid pyramid) {
+			this.faceStore = faceStore;
+			this.pyramid = pyramid;
+		}
+	}
+	
+	public static synchronized PanoSessionHolder getInstance() {
+		if (instance == null) {
+			instance = new PanoSessionHolder();
+		}
+		
+		return instance;
+	}
+	
+	// Adds a session owned by the calling activity.
+	public synchronized long add(Session session) {
+		long handle = nextHandle++;
+		session.ownerCnt = 1;
+		sessions.put(handle, session);
+		
+		return handle;
+	}
+	
+	// Takes over the session of an earlier activity instance. Returns null if 
+	// there is no such session (anymore).
+	public synchronized Session acquire(long handle) {
+		Session session = sessions.get(handle);
+		if (session != null) {
+			session.ownerCnt++;
+		}
+		
+		return session;
+	}
+	
+	// Called by an activity that is destroyed. If keep is set (e.g., after a 
+	// configuration change), the session stays for the next activity instance, 
+	// which acquires it with the handle from the saved instance state. Otherwise,
+	// faces and tiles are deleted as soon as no live activity owns the session.
+	public synchronized void release(long handle, boolean keep) {
+		Session session = sessions.get(handle);
+		if (session == null) {
+			return;
+		}
+		
+		session.ownerCnt--;
+		if (session.ownerCnt > 0 || keep) {
+			return;
+		}
+		
+		sessions.remove(handle);
+		session.faceStore.delete();
+		if (session.pyramid != null) {
+			session.pyramid.delete();
+		}
+	}
+	
+	// Face stores of all sessions (in use or kept for a re-created activity).
+	public synchronized List<FaceStore> getFaceStores() {
+		List<FaceStore> faceStores = new ArrayList<FaceStore>();
+		for (Session session : sessions.values()) {
+			faceStores.add(session.faceStore);
+		}
+		
+		return faceStores;
+	}
+	
+	// Tile pyramids of all sessions (in use or kept for a re-created activity).
+	public synchronized List<TilePyramid> getPyramids() {
+		List<TilePyramid> pyramids = new ArrayList<TilePyramid>();
+		for (Session session : sessions.values()) {
+			if (session.pyramid != null) {
+				pyramids.add(session.pyramid);
+			}
+		}
+		
+		return pyramids;
+	}
+}
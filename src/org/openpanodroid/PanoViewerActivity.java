@@ -20,17 +20,18 @@
 package org.openpanodroid;
 
 import java.io.BufferedInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.net.URLConnection;
 
+import org.openpanodroid.ioutils.ByteArrayPool;
 import org.openpanodroid.ioutils.Pipe;
 import org.openpanodroid.panoutils.android.CubicPanoNative;
 import org.openpanodroid.panoutils.android.CubicPanoNative.TextureFaces;
+import org.openpanodroid.rest.HttpTransport;
 
 import junit.framework.Assert;
 
@@ -49,7 +50,7 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.Parcelable;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.Display;
@@ -61,21 +62,27 @@ import android.view.WindowManager;
 public class PanoViewerActivity extends Activity {
 	private static final String LOG_TAG = FlickrSearchActivity.class.getSimpleName();
 	
-	private static int IMG_QUALITY = 85;
+	private static final String SESSION_KEY = "session";
+	private static final String ROTATION_LATITUDE_KEY = "rotationLatitude";
+	private static final String ROTATION_LONGITUDE_KEY = "rotationLongitude";
+	private static final String FOV_KEY = "fov";
+	private static final String FACE_FILE_KEY = "faceFile";
+	private static final String FACE_SIZE_KEY = "faceSize";
+	private static final String TILE_LEVELS_KEY = "tileLevels";
 	
-	private static final String FRONT_BITMAP_KEY = "frontBitmap";
-	private static final String BACK_BITMAP_KEY = "backBitmap";
-	private static final String TOP_BITMAP_KEY = "topBitmap";
-	private static final String BOTTOM_BITMAP_KEY = "bottomBitmap";
-	private static final String LEFT_BITMAP_KEY = "leftBitmap";
-	private static final String RIGHT_BITMAP_KEY = "rightBitmap";
+	private static final String FACE_STORE_DIR = "faces";
+	
+	private static final String TEXTURE_SIZE_PREF = "textureSize";
+	private static final String TEXTURE_SIZE_AUTO = "auto";
 	
 	protected Uri panoUri;
 	
 	private PanodroidGLView glView = null;
 
 	private Bitmap pano = null;
-	private CubicPanoNative cubicPano = null;
+	private FaceStore faceStore = null;
+	private TilePyramid tilePyramid = null;
+	private long sessionHandle = PanoSessionHolder.NO_SESSION;
 	
 	private BitmapDownloadTask panoDownloadTask = null;
 	
@@ -109,10 +116,6 @@ public class PanoViewerActivity extends Activity {
 			options.inScaled = false;
 			BitmapUtilities.setHiddenNativeAllocField(options);
 			
-			//ActivityManager activityManager = (ActivityManager) getSystemService(ACTIVITY_SERVICE);
-			//int largeMem = activityManager.getLargeMemoryClass();
-			//int regularMem = activityManager.getMemoryClass();
-			
 			try {
 				bitmap = BitmapFactory.decodeStream(is, null, options);
 			} catch (OutOfMemoryError e) {
@@ -166,8 +169,9 @@ public class PanoViewerActivity extends Activity {
 			Assert.assertTrue(params.length > 0);
 			Uri uri = params[0];
 			int contentLength = -1;
-			byte[] buffer = new byte[BUFFER_SIZE];
-			URLConnection connection;
+			ByteArrayPool bufferPool = BitmapPool.getInstance().getBufferPool();
+			byte[] buffer = bufferPool.acquire(BUFFER_SIZE);
+			HttpTransport.Response response = null;
 			URL url;
 			
 			try {
@@ -186,9 +190,9 @@ public class PanoViewerActivity extends Activity {
 				if (url != null) {
 					// We try to open an URL connection since this gives us a content length
 					// (in contrast to the generic way of opening an URI).
-					connection = url.openConnection();
-					downloadStream = new BufferedInputStream(connection.getInputStream());
-					contentLength = connection.getContentLength();
+					response = HttpTransport.getInstance().open(url, false);
+					downloadStream = new BufferedInputStream(response.getInputStream());
+					contentLength = response.getContentLength();
 				} else {
 					// Try generic way to open URI.
 					downloadStream = getContentResolver().openInputStream(uri);				
@@ -222,6 +226,16 @@ public class PanoViewerActivity extends Activity {
 						pipeOutput.close();
 					} catch (IOException e) {}
 				}
+				
+				if (response != null) {
+					if (isCancelled()) {
+						response.abort();
+					} else {
+						response.close();
+					}
+				}
+				
+				bufferPool.release(buffer);
 			}
 			
 			if (bitmapDecoder != null) {
@@ -285,14 +299,18 @@ public class PanoViewerActivity extends Activity {
 		}
 	}
 	
-	private class PanoConversionTask extends AsyncTask<Bitmap, Integer, CubicPanoNative> {
+	private class PanoConversionTask extends AsyncTask<Bitmap, Integer, FaceStore> {
 		
 		private ProgressDialog waitDialog = null;
 		private int textureSize;
+		// Face sizes of the tile pyramid levels (may be empty).
+		private int[] levelSizes;
+		private TilePyramid pyramid = null;
 		private boolean destroyed = false;
 		
-		public PanoConversionTask(int textureSize) {
+		public PanoConversionTask(int textureSize, int[] levelSizes) {
 			this.textureSize = textureSize;
+			this.levelSizes = levelSizes;
 		}
 		
 		@Override
@@ -306,107 +324,152 @@ public class PanoViewerActivity extends Activity {
 	    			cancel(true);
 	    		}
 	    	});
-	    	waitDialog.setMax(6);
+	    	waitDialog.setMax(6*(1+levelSizes.length));
 	    	waitDialog.show();
 		}
 		
 		@Override
-		protected CubicPanoNative doInBackground(Bitmap... params) {
-			Bitmap bmp;
-			
-			if (isCancelled()) {
-				return null;
-			}
-			
-			bmp = CubicPanoNative.getCubeSide(pano, TextureFaces.front, textureSize);
-			if (bmp == null) {
-				return null;
-			}
-			Bitmap front = createPurgableBitmap(bmp);
-			bmp.recycle();
-			publishProgress(1);
-			
-			if (isCancelled()) {
-				return null;
-			}
+		protected FaceStore doInBackground(Bitmap... params) {
+			TextureFaces[] conversionOrder = {TextureFaces.front, TextureFaces.back, TextureFaces.top, 
+					TextureFaces.bottom, TextureFaces.right, TextureFaces.left};
+			FaceStore store = FaceStore.create(getFaceStoreDir(), textureSize);
+			boolean success = false;
+			long tStart = SystemClock.elapsedRealtime();
+			long calculationTime = 0;
+			long tFacesDone = tStart;
 			
-			bmp = CubicPanoNative.getCubeSide(pano, TextureFaces.back, textureSize);
-			if (bmp == null) {
-				return null;
-			}
-			Bitmap back = createPurgableBitmap(bmp);
-			bmp.recycle();
-			publishProgress(2);
-
-			if (isCancelled()) {
-				return null;
-			}
+			// All faces are calculated into the same bitmap, which goes back to the 
+			// pool afterwards. So converting the next panorama of the same size 
+			// does not need to allocate it again.
+			BitmapPool pool = BitmapPool.getInstance();
+			Bitmap bmp = pool.acquire(textureSize, textureSize, Bitmap.Config.ARGB_8888);
 			
-			bmp = CubicPanoNative.getCubeSide(pano, TextureFaces.top, textureSize);
-			if (bmp == null) {
-				return null;
-			}
-			Bitmap top = createPurgableBitmap(bmp);
-			bmp.recycle();
-			publishProgress(3);
-			
-			if (isCancelled()) {
-				return null;
+			try {
+				for (int i = 0; i < conversionOrder.length; i++) {
+					if (isCancelled()) {
+						return null;
+					}
+					
+					TextureFaces face = conversionOrder[i];
+					long t = SystemClock.elapsedRealtime();
+					if (!CubicPanoNative.getCubeSide(pano, face, bmp)) {
+						return null;
+					}
+					calculationTime += SystemClock.elapsedRealtime()-t;
+					
+					store.putFace(face, bmp);
+					publishProgress(i+1);
+				}
+				
+				// Make sure the faces are on disk in case the process is killed
+				// while the activity is in the background.
+				store.flush();
+				tFacesDone = SystemClock.elapsedRealtime();
+				
+				pool.release(bmp);
+				bmp = null;
+				
+				pyramid = convertTiles(store, conversionOrder);
+				if (isCancelled()) {
+					return null;
+				}
+				
+				success = true;
+			} finally {
+				if (bmp != null) {
+					pool.release(bmp);
+				}
+				
+				if (!success) {
+					store.delete();
+					if (pyramid != null) {
+						pyramid.delete();
+					}
+				}
 			}
 			
-			bmp = CubicPanoNative.getCubeSide(pano, TextureFaces.bottom, textureSize);
-			if (bmp == null) {
-				return null;
-			}
-			Bitmap bottom = createPurgableBitmap(bmp);
-			bmp.recycle();
-			publishProgress(4);
+			long totalTime = SystemClock.elapsedRealtime()-tStart;
+			Log.i(LOG_TAG, "Converted panorama in " + totalTime + " ms (faces: calculation " + calculationTime + 
+					" ms, storing " + (tFacesDone-tStart-calculationTime) + " ms); " + store.getByteCount() + 
+					" bytes in face store" + (store.getFile() == null ? " (in memory)" : "") + "; " + 
+					(pyramid == null ? 0 : pyramid.getLevelCount()) + " tile levels");
 			
-			if (isCancelled()) {
+			return store;
+		}
+		
+		// Calculates the faces at the sizes of the pyramid levels and splits them 
+		// into tiles. The levels have been planned to fit into memory. If a level
+		// fails nevertheless, the pyramid ends with the level below. Returns null 
+		// if there are no levels.
+		private TilePyramid convertTiles(FaceStore store, TextureFaces[] conversionOrder) {
+			if (levelSizes.length == 0 || store.getFile() == null) {
+				// Tiles are only stored next to a face file.
 				return null;
 			}
 			
-			bmp = CubicPanoNative.getCubeSide(pano, TextureFaces.right, textureSize);
-			if (bmp == null) {
-				return null;
-			}
-			Bitmap right = createPurgableBitmap(bmp);
-			bmp.recycle();
-			publishProgress(5);
+			BitmapPool pool = BitmapPool.getInstance();
+			ByteArrayPool bufferPool = pool.getBufferPool();
+			int[] pixels = new int[TilePyramid.TILE_SIZE*TilePyramid.TILE_SIZE];
+			byte[] buffer = bufferPool.acquire(TilePyramid.TILE_SIZE*TilePyramid.TILE_SIZE*4);
+			TilePyramid pyramid = new TilePyramid(TilePyramid.getDir(store), levelSizes);
+			int levelCnt = 0;
 			
-			if (isCancelled()) {
-				return null;
+			try {
+				for (int level = 0; level < levelSizes.length; level++) {
+					int size = levelSizes[level];
+					Bitmap bmp;
+					try {
+						bmp = pool.acquire(size, size, Bitmap.Config.ARGB_8888);
+					} catch (OutOfMemoryError e) {
+						Log.e(LOG_TAG, "Not enough memory for tile level " + level + " (face size " + size + ")");
+						break;
+					}
+					
+					int faceCnt = 0;
+					try {
+						for (int i = 0; i < conversionOrder.length; i++) {
+							if (isCancelled()) {
+								return pyramid;
+							}
+							
+							TextureFaces face = conversionOrder[i];
+							if (!CubicPanoNative.getCubeSide(pano, face, bmp)) {
+								Log.e(LOG_TAG, "Failed to calculate face " + face + " of tile level " + level);
+								break;
+							}
+							pyramid.writeTiles(face, level, bmp, pixels, buffer);
+							publishProgress(6*(level+1) + i+1);
+							faceCnt++;
+						}
+					} catch (IOException e) {
+						Log.e(LOG_TAG, "Failed to write tiles: " + e.getMessage());
+					} finally {
+						pool.release(bmp);
+					}
+					
+					if (faceCnt < conversionOrder.length) {
+						// The tiles of this level are incomplete.
+						break;
+					}
+					levelCnt++;
+				}
+			} finally {
+				bufferPool.release(buffer);
 			}
 			
-			bmp = CubicPanoNative.getCubeSide(pano, TextureFaces.left, textureSize);
-			if (bmp == null) {
-				return null;
+			if (levelCnt < levelSizes.length) {
+				// Tiles of an incomplete level are ignored (and deleted together with the pyramid).
+				int[] completeLevelSizes = new int[levelCnt];
+				System.arraycopy(levelSizes, 0, completeLevelSizes, 0, levelCnt);
+				TilePyramid completePyramid = new TilePyramid(pyramid.getDir(), completeLevelSizes);
+				if (levelCnt == 0) {
+					completePyramid.delete();
+					return null;
+				}
+				return completePyramid;
 			}
-			Bitmap left = createPurgableBitmap(bmp);
-			bmp.recycle();
-			publishProgress(6);
-			
-			CubicPanoNative cubic = new CubicPanoNative(front, back, top, bottom, left, right);
 			
-			return cubic;
-		}
-		
-		private Bitmap createPurgableBitmap(Bitmap original) {
-			ByteArrayOutputStream os = new ByteArrayOutputStream();
-			original.compress(Bitmap.CompressFormat.JPEG, IMG_QUALITY, os);
-			byte[] imgDataCompressed = os.toByteArray();
-
-			BitmapFactory.Options options = new BitmapFactory.Options();
-			options.inDither = false;
-			// When we run out of memory, the decompressed bitmap can be purged.
-			// If it is re-accessed, the byte array will be decompressed again.
-			// This allows us to handle larger or more bitmaps.
-			options.inPurgeable = true;
-			// Original byte array will not be altered anymore. --> Can make a shallow reference.
-			options.inInputShareable = true; 
-			Bitmap compressedBitmap = BitmapFactory.decodeByteArray(imgDataCompressed, 0, imgDataCompressed.length, options);
-			
-			return compressedBitmap;
+			return pyramid;
 		}
 		
 		synchronized boolean isDestroyed() {
@@ -430,7 +493,7 @@ public class PanoViewerActivity extends Activity {
 		}
 		
 		@Override
-		protected void onPostExecute(CubicPanoNative result) {
+		protected void onPostExecute(FaceStore result) {
 			if (isDestroyed()) {
 				return;
 			}
@@ -442,7 +505,9 @@ public class PanoViewerActivity extends Activity {
 			if (result == null) {
 				UIUtilities.showAlert(PanoViewerActivity.this, null, getString(R.string.convertingPanoImage), new ClickListenerErrorDialog());
 			} else {
-				cubicPano = result;
+				faceStore = result;
+				tilePyramid = pyramid;
+				sessionHandle = PanoSessionHolder.getInstance().add(new PanoSessionHolder.Session(faceStore, tilePyramid));
 				setupOpenGLView();
 				panoDisplaySetupFinished();
 			}
@@ -478,78 +543,40 @@ public class PanoViewerActivity extends Activity {
        
         setupImageInfo();
         
-        Bitmap front, back, top, bottom, left, right;
-        front = back = top = bottom = left = right = null;
-
         if (savedInstanceState != null) {
-        	Parcelable parcelData;
-        	parcelData = savedInstanceState.getParcelable(FRONT_BITMAP_KEY);
-        	if (parcelData != null) {
-        		Assert.assertTrue(parcelData instanceof Bitmap);
-        		front = (Bitmap) parcelData;
-        	}
-        
-        	parcelData = savedInstanceState.getParcelable(BACK_BITMAP_KEY);
-        	if (parcelData != null) {
-        		Assert.assertTrue(parcelData instanceof Bitmap);
-        		back = (Bitmap) parcelData;
-        	}
-        
-        	parcelData = savedInstanceState.getParcelable(TOP_BITMAP_KEY);
-        	if (parcelData != null) {
-        		Assert.assertTrue(parcelData instanceof Bitmap);
-        		top = (Bitmap) parcelData;
-        	}
-        
-        	parcelData = savedInstanceState.getParcelable(BOTTOM_BITMAP_KEY);
-        	if (parcelData != null) {
-        		Assert.assertTrue(parcelData instanceof Bitmap);
-        		bottom = (Bitmap) parcelData;
-        	}
-        
-        	parcelData = savedInstanceState.getParcelable(LEFT_BITMAP_KEY);
-        	if (parcelData != null) {
-        		Assert.assertTrue(parcelData instanceof Bitmap);
-        		left = (Bitmap) parcelData;
-        	}
-        
-        	parcelData = savedInstanceState.getParcelable(RIGHT_BITMAP_KEY);
-        	if (parcelData != null) {
-        		Assert.assertTrue(parcelData instanceof Bitmap);
-        		right = (Bitmap) parcelData;
+        	// Usually, the panorama of the last activity instance is still there.
+        	// If the process was killed in between, we map its face file again.
+        	long handle = savedInstanceState.getLong(SESSION_KEY, PanoSessionHolder.NO_SESSION);
+        	PanoSessionHolder.Session session = PanoSessionHolder.getInstance().acquire(handle);
+        	if (session != null) {
+        		faceStore = session.faceStore;
+        		tilePyramid = session.pyramid;
+        		sessionHandle = handle;
+        	} else {
+        		String faceFile = savedInstanceState.getString(FACE_FILE_KEY);
+        		int faceSize = savedInstanceState.getInt(FACE_SIZE_KEY, 0);
+        		if (faceFile != null && faceSize > 0) {
+        			faceStore = FaceStore.open(new File(faceFile), faceSize);
+        		}
+        		int[] levelSizes = savedInstanceState.getIntArray(TILE_LEVELS_KEY);
+        		if (faceStore != null && levelSizes != null) {
+        			tilePyramid = new TilePyramid(TilePyramid.getDir(faceStore), levelSizes);
+        		}
+        		if (faceStore != null) {
+        			sessionHandle = PanoSessionHolder.getInstance().add(new PanoSessionHolder.Session(faceStore, tilePyramid));
+        		}
         	}
         }
         
-        if (front == null || back == null || top == null || bottom == null || left == null || right == null) {
-        	if (front != null) {
-        		front.recycle();
-        		front = null;
-        	}
-        	if (back != null) {
-        		back.recycle();
-        		back = null;
-        	}
-        	if (top != null) {
-        		top.recycle();
-        		top = null;
-        	}
-        	if (bottom != null) {
-        		bottom.recycle();
-        		bottom = null;
-        	}
-        	if (left != null) {
-        		left.recycle();
-        		left = null;
-        	}
-        	if (right != null) {
-        		right.recycle();
-        		right = null;
-        	}
-        	
+        if (faceStore == null) {
         	downloadPano();
         } else {
-        	cubicPano = new CubicPanoNative(front, back, top, bottom, left, right);
         	setupOpenGLView();
+        	
+        	float rotationLatitude = savedInstanceState.getFloat(ROTATION_LATITUDE_KEY, 0.0f);
+        	float rotationLongitude = savedInstanceState.getFloat(ROTATION_LONGITUDE_KEY, 0.0f);
+        	glView.getRenderer().setRotation(rotationLatitude, rotationLongitude);
+        	glView.getRenderer().setFov(savedInstanceState.getFloat(FOV_KEY, GlobalConstants.DEFAULT_FOV_DEG));
         }
     }
     
@@ -594,15 +621,27 @@ public class PanoViewerActivity extends Activity {
     	Log.i(LOG_TAG, "Resuming");
     	
     	super.onResume();
+    	
+    	// A state saved before is obsolete now.
+    	stateSaved = false;
         
         if (glView != null) {
         	glView.onResume();
         }
     }
     
+    @Override
+    public void onLowMemory() {
+    	Log.i(LOG_TAG, "Low memory. Emptying bitmap pool.");
+    	
+    	BitmapPool.getInstance().clear();
+    	
+    	super.onLowMemory();
+    }
+    
     private void setupOpenGLView() {
-    	Assert.assertTrue(cubicPano != null);
-    	glView = new PanodroidGLView(this, cubicPano);
+    	Assert.assertTrue(faceStore != null);
+    	glView = new PanodroidGLView(this, faceStore, tilePyramid);
         setContentView(glView);	
     }
     
@@ -612,6 +651,12 @@ public class PanoViewerActivity extends Activity {
     	// We might need a lot of memory in the next time (depending on the image size).
     	System.gc();
     	
+    	// Face files and tiles left behind (e.g., by a killed process) are not 
+    	// needed anymore. Those of other viewers, which might still be alive, are kept.
+    	PanoSessionHolder holder = PanoSessionHolder.getInstance();
+    	FaceStore.deleteUnused(getFaceStoreDir(), holder.getFaceStores());
+    	TilePyramid.deleteUnused(getFaceStoreDir(), holder.getPyramids());
+    	
     	// TODO: Remove after tests.	
     	// ****
     	/*
@@ -637,14 +682,16 @@ public class PanoViewerActivity extends Activity {
     	
     	Log.i(LOG_TAG, "Converting panorama ...");
     	
+    	// By default, the texture size is chosen automatically. A texture size set in
+    	// the preferences overrides this choice.
     	SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-    	String str = prefs.getString("textureSize", "");
-    	int maxTextureSize = GlobalConstants.DEFAULT_MAX_TEXTURE_SIZE;
-    	if (!str.equals("")) {
+    	String str = prefs.getString(TEXTURE_SIZE_PREF, TEXTURE_SIZE_AUTO);
+    	int maxTextureSize = -1;
+    	if (!str.equals(TEXTURE_SIZE_AUTO)) {
     		try {
     			maxTextureSize = Integer.parseInt(str);
     		} catch (NumberFormatException ex) {
-    			maxTextureSize = GlobalConstants.DEFAULT_MAX_TEXTURE_SIZE;
+    			maxTextureSize = -1;
     		}
     	}
     	
@@ -659,23 +706,44 @@ public class PanoViewerActivity extends Activity {
     	int maxDisplaySize = width > height ? width : height;
     	
     	int optimalTextureSize = getOptimalFaceSize(maxDisplaySize, pano.getWidth(), GlobalConstants.DEFAULT_FOV_DEG);
-    	int textureSize = toPowerOfTwo(optimalTextureSize);
-    	textureSize = textureSize <= maxTextureSize ? textureSize : maxTextureSize;
+    	TextureSizePlanner planner = new TextureSizePlanner(this);
+    	int textureSize;
+    	if (maxTextureSize > 0) {
+    		// The preference must not exceed what the GL implementation can handle.
+    		maxTextureSize = Math.min(maxTextureSize, planner.getMaxGLTextureSize());
+    		// Faces don't need to be a power of two in size (see TextureResidencyManager).
+    		textureSize = TextureSizePlanner.align(optimalTextureSize);
+    		textureSize = textureSize <= maxTextureSize ? textureSize : maxTextureSize;
+    		Log.i(LOG_TAG, "Texture size set by preferences: " + maxTextureSize);
+    	} else {
+    		textureSize = planner.plan(optimalTextureSize, pano.getWidth(), pano.getHeight());
+    		maxTextureSize = planner.getMaxGLTextureSize();
+    	}
     	
-    	Log.i(LOG_TAG, "Texture size: " + textureSize + " (optimal size was " + optimalTextureSize + ")");
+    	int powerOfTwoSize = Math.min(TextureResidencyManager.toPowerOfTwo(optimalTextureSize), maxTextureSize);
+    	Log.i(LOG_TAG, "Texture size: " + textureSize + " (optimal size was " + optimalTextureSize + 
+    			"; " + (100 - 100L*textureSize*textureSize/(powerOfTwoSize*powerOfTwoSize)) + 
+    			"% fewer pixels to convert and store than with power-of-two size " + powerOfTwoSize + ")");
     
-    	panoConversionTask = new PanoConversionTask(textureSize);
+    	// Zooming in needs more details than the faces provide. Up to the resolution of
+    	// the panorama, these details come from tiles. A face covers a quarter of the 
+    	// panorama's width, so larger faces would only be interpolated. Since each 
+    	// level doubles the face size, there are only a few levels: typically one if
+    	// the faces already have the optimal size for the display, more if the 
+    	// faces had to be made smaller to fit into memory.
+    	int sourceFaceSize = pano.getWidth()/4;
+    	int[] levelSizes = TilePyramid.getLevelSizes(textureSize, sourceFaceSize);
+    	int possibleLevelCnt = levelSizes.length;
+    	levelSizes = planner.planLevels(textureSize, levelSizes);
+    	Log.i(LOG_TAG, "Tile levels: " + levelSizes.length + " of " + possibleLevelCnt + 
+    			" up to the source face size " + sourceFaceSize);
+    	
+    	panoConversionTask = new PanoConversionTask(textureSize, levelSizes);
     	panoConversionTask.execute(pano);
     }
     
-    private int toPowerOfTwo(int number) {
-    	int n_2 = 1;
-    	
-    	while (n_2 < number) {
-    		n_2 *= 2;
-    	}
-    	
-    	return n_2;
+    private File getFaceStoreDir() {
+    	return new File(getCacheDir(), FACE_STORE_DIR);
     }
     
     @Override
@@ -684,13 +752,26 @@ public class PanoViewerActivity extends Activity {
     	
     	super.onSaveInstanceState(outState);
     	
-    	if (cubicPano != null) {
-    		outState.putParcelable(FRONT_BITMAP_KEY, cubicPano.getFace(TextureFaces.front));		
-    		outState.putParcelable(BACK_BITMAP_KEY, cubicPano.getFace(TextureFaces.back));
-    		outState.putParcelable(TOP_BITMAP_KEY, cubicPano.getFace(TextureFaces.top));
-    		outState.putParcelable(BOTTOM_BITMAP_KEY, cubicPano.getFace(TextureFaces.bottom));
-    		outState.putParcelable(LEFT_BITMAP_KEY, cubicPano.getFace(TextureFaces.left));
-    		outState.putParcelable(RIGHT_BITMAP_KEY, cubicPano.getFace(TextureFaces.right));
+    	// The faces stay in the session holder. Only the session handle (and the 
+    	// location of the face file in case the process is killed) is saved.
+    	if (faceStore != null) {
+    		outState.putLong(SESSION_KEY, sessionHandle);
+    		if (faceStore.getFile() != null) {
+    			outState.putString(FACE_FILE_KEY, faceStore.getFile().getAbsolutePath());
+    			outState.putInt(FACE_SIZE_KEY, faceStore.getFaceSize());
+    			if (tilePyramid != null) {
+    				int[] levelSizes = new int[tilePyramid.getLevelCount()];
+    				for (int level = 0; level < levelSizes.length; level++) {
+    					levelSizes[level] = tilePyramid.getLevelSize(level);
+    				}
+    				outState.putIntArray(TILE_LEVELS_KEY, levelSizes);
+    			}
+    		}
+    		if (glView != null) {
+    			outState.putFloat(ROTATION_LATITUDE_KEY, glView.getRenderer().getRotationLatitudeDeg());
+    			outState.putFloat(ROTATION_LONGITUDE_KEY, glView.getRenderer().getRotationLongitudeDeg());
+    			outState.putFloat(FOV_KEY, glView.getRenderer().getFov());
+    		}
     		stateSaved = true;
     	}
     }
@@ -711,18 +792,19 @@ public class PanoViewerActivity extends Activity {
     		panoConversionTask.destroy();
     	}
     	
-    	// We might have used a lot of memory.
-    	// Explicitly free it now.
+    	// We might have used a lot of memory. Explicitly free it now. Bitmaps used 
+    	// for the conversion stay in the bitmap pool for the next panorama.
+    	
+    	if (glView != null) {
+    		glView.getRenderer().release();
+    	}
     	
-    	if (cubicPano != null && !stateSaved) {
-    		cubicPano.getFace(TextureFaces.front).recycle();
-    		cubicPano.getFace(TextureFaces.back).recycle();
-    		cubicPano.getFace(TextureFaces.top).recycle();
-    		cubicPano.getFace(TextureFaces.bottom).recycle();
-    		cubicPano.getFace(TextureFaces.left).recycle();
-    		cubicPano.getFace(TextureFaces.right).recycle();
-    		cubicPano = null;
-    		System.gc();
+    	if (faceStore != null) {
+    		// After a configuration change, the next instance takes the session over.
+    		boolean keep = stateSaved && !isFinishing();
+    		PanoSessionHolder.getInstance().release(sessionHandle, keep);
+    		faceStore = null;
+    		tilePyramid = null;
     	}
     	
     	super.onDestroy();
@@ -21,15 +21,14 @@ package org.openpanodroid;
 
 import java.util.Stack;
 
-import org.openpanodroid.panoutils.android.CubicPanoNative;
-
-
 import junit.framework.Assert;
 
 import android.app.Activity;
 import android.opengl.GLSurfaceView;
+import android.os.Build;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 
 public class PanodroidGLView extends GLSurfaceView {
 	private static final String LOG_TAG = PanodroidGLView.class.getSimpleName();
@@ -41,6 +40,11 @@ public class PanodroidGLView extends GLSurfaceView {
     
     private Stack<EventInfo> motionEvents;
     
+    private ScaleGestureDetector scaleDetector;
+    // Set while the view is zoomed with two fingers. Moves of the remaining finger
+    // don't rotate the view until all fingers have been lifted.
+    private boolean isZooming = false;
+    
     class EventInfo {
     	public float x;
     	public float y;
@@ -53,8 +57,34 @@ public class PanodroidGLView extends GLSurfaceView {
     	}
     }
     
+    private class ScaleListener extends ScaleGestureDetector.SimpleOnScaleGestureListener {
+    	@Override
+    	public boolean onScaleBegin(ScaleGestureDetector detector) {
+    		isZooming = true;
+    		stopKineticRotation();
+    		return true;
+    	}
+    	
+    	@Override
+    	public boolean onScale(ScaleGestureDetector detector) {
+    		// Spreading the fingers zooms in, i.e., makes the field of view smaller.
+    		renderer.setFov(renderer.getFov()/detector.getScaleFactor());
+    		return true;
+    	}
+    }
+    
 	@Override
 	public boolean onTouchEvent(final MotionEvent event) {
+		scaleDetector.onTouchEvent(event);
+		
+		if (isZooming) {
+			int action = event.getAction() & MotionEvent.ACTION_MASK;
+			if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+				isZooming = false;
+				motionEvents = null;
+			}
+			return true;
+		}
 		
 		switch (event.getAction()) {
     	case MotionEvent.ACTION_DOWN :
@@ -176,11 +206,38 @@ public class PanodroidGLView extends GLSurfaceView {
 		renderer.setRotation(rotationLatitudeDeg, rotationLongitudeDeg);
 	}
 	
-    public PanodroidGLView(Activity activity, CubicPanoNative pano) {
+    public PanodroidGLView(Activity activity, FaceStore faceStore, TilePyramid pyramid) {
         super(activity);
     	
-        renderer = new PanodroidVortexRenderer(this, pano);
+        // Keep the GL context (and the textures) while paused, so resuming does 
+        // not need to upload the faces again. The context may still get lost, 
+        // e.g., if the device runs out of GL resources.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+        	setPreserveEGLContextOnPause(true);
+        }
+        
+        // The context factory allows faces to be uploaded in the background.
+        SharedContextFactory contextFactory = new SharedContextFactory();
+        setEGLContextFactory(contextFactory);
+        
+        renderer = new PanodroidVortexRenderer(this, faceStore, pyramid, contextFactory);
         setRenderer(renderer);
+        // Frames are only drawn if something has changed (see FrameScheduler).
+        setRenderMode(RENDERMODE_WHEN_DIRTY);
+        renderer.startFrameTimer();
+        
+        scaleDetector = new ScaleGestureDetector(activity, new ScaleListener());
+    }
+    
+    @Override
+    public void onResume() {
+    	super.onResume();
+    	
+    	renderer.startFrameTimer();
+    }
+    
+    public PanodroidVortexRenderer getRenderer() {
+    	return renderer;
     }
     
 }
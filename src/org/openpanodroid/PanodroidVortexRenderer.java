@@ -32,34 +32,60 @@ import org.openpanodroid.panoutils.android.CubicPanoNative;
 
 import junit.framework.Assert;
 
-import android.graphics.Bitmap;
 import android.opengl.GLSurfaceView;
 import android.opengl.GLU;
-import android.opengl.GLUtils;
+import android.os.SystemClock;
 import android.util.Log;
 
-public class PanodroidVortexRenderer implements GLSurfaceView.Renderer {
+public class PanodroidVortexRenderer implements GLSurfaceView.Renderer, TextureResidencyManager.Listener, 
+		TileManager.Listener {
 	private static final String LOG_TAG = PanodroidVortexRenderer.class.getSimpleName();
 	
     private final static float COORD = (float) Math.sin(Math.PI/4.0);
     
     private final static float ROTATION_ACCELERATION = 20; // [deg/s^2]
     
+    private final static int FACE_STATISTICS_INTERVAL = 300; // [frames]
+    
+    private final static int FACE_CNT = CubicPano.TextureFaces.values().length;
+    
     private final static float backColorRed = 0.0f;
     private final static float backColorGreen = 0.0f;
     private final static float backColorBlue = 0.0f;
     
-    private CubicPanoNative cubicPano;
+    private TextureResidencyManager textures;
+    // Tiles for zooming in beyond the resolution of the faces (null if there is no pyramid).
+    private TileManager tileManager = null;
+    private LodController lodController = null;
+    // Level of the tiles shown completely (-1 if no tiles are shown).
+    private int tileLevel = -1;
     
     private PanodroidGLView view;
     
-	private int[] textureIds = new int[6];
+    private FrameScheduler frameScheduler;
+    
 	
     private FloatBuffer cubeVertexBuffer;
     private ShortBuffer[] faceVertexIndices = new ShortBuffer[6];
     private FloatBuffer[] faceTextureCoordinates = new FloatBuffer[6];
+    // Corners of each face in the order of its triangle strip (x, y, z).
+    private float[][] faceCorners = new float[6][];
+    
+    // Geometry for drawing all faces from the atlas texture (null if the faces have
+    // textures of their own): 4 vertices and 2 triangles per face.
+    private FloatBuffer atlasVertexBuffer = null;
+    private FloatBuffer atlasTexCoordBuffer;
+    // Indices of the triangles of each face (6 per face).
+    private short[] atlasFaceIndices;
+    // Indices of the faces drawn in the current frame.
+    private ShortBuffer atlasIndexBuffer;
+    
+    private FaceVisibility faceVisibility = new FaceVisibility();
+    private boolean[] isFaceVisible = new boolean[6];
     
 	private float fovDeg; // diagonal field of view
+	// Set when the field of view was changed. The projection is updated with the next frame.
+	private boolean isProjectionChanged = false;
     
 	// Rotation around x axis in degrees (to a certain latitude circle).
 	private float rotationLatitudeDeg = 0.0f;
@@ -75,14 +101,36 @@ public class PanodroidVortexRenderer implements GLSurfaceView.Renderer {
     private float latitude0, longitude0;
     private long t0; // [ms]
     
-    public PanodroidVortexRenderer(PanodroidGLView view, CubicPanoNative cubicPano) {
+    // Time when the view was (re-)started. Used to measure the time to the first frame.
+    private long tFrameTimerStart = 0; // [ms]
+    
+    public PanodroidVortexRenderer(PanodroidGLView view, FaceStore faceStore, TilePyramid pyramid, 
+    		SharedContextFactory contextFactory) {
     	super();
     	
     	this.view = view;
-    	this.cubicPano = cubicPano;
+    	this.frameScheduler = new FrameScheduler(view);
+    	this.textures = new TextureResidencyManager(faceStore, contextFactory);
+    	textures.setListener(this);
+    	if (pyramid != null && pyramid.getLevelCount() > 0) {
+    		this.tileManager = new TileManager(pyramid);
+    		tileManager.setListener(this);
+    		this.lodController = new LodController(faceStore.getFaceSize(), pyramid);
+    	}
     	this.fovDeg = GlobalConstants.DEFAULT_FOV_DEG;
     	
-    	setRotation(0.0f, 0.0f);
+    	// The view will draw the first frame anyway.
+    	updateRotation(0.0f, 0.0f);
+    }
+    
+    @Override
+    public void onTexturesChanged() {
+    	frameScheduler.invalidate();
+    }
+    
+    @Override
+    public void onTileLoaded() {
+    	frameScheduler.invalidate();
     }
     
     public synchronized void startKineticRotation(float rotationSpeedLatitude, float rotationSpeedLongitude) {
@@ -92,6 +140,24 @@ public class PanodroidVortexRenderer implements GLSurfaceView.Renderer {
     	latitude0 = rotationLatitudeDeg;
     	longitude0 = rotationLongitudeDeg;
     	t0 = System.currentTimeMillis();
+    	
+    	frameScheduler.invalidate();
+    }
+    
+    // Measures the time until the next frame has been drawn, e.g., after
+    // the view has been resumed.
+    public synchronized void startFrameTimer() {
+    	tFrameTimerStart = SystemClock.elapsedRealtime();
+    }
+    
+    private synchronized void stopFrameTimer() {
+    	if (tFrameTimerStart == 0) {
+    		return;
+    	}
+    	
+    	Log.i(LOG_TAG, "First frame drawn " + (SystemClock.elapsedRealtime()-tFrameTimerStart) + 
+    			" ms after start (" + textures.getResidentCount() + " faces resident)");
+    	tFrameTimerStart = 0;
     }
     
     public synchronized void stopKineticRotation() {
@@ -134,7 +200,8 @@ public class PanodroidVortexRenderer implements GLSurfaceView.Renderer {
     		deltaLon = 0.5f*tMax*rotationSpeedLongitude0;
     	}
     	
-    	setRotation(latitude0+deltaLat, longitude0+deltaLon);
+    	// Kinetic rotation draws continuous frames anyway.
+    	updateRotation(latitude0+deltaLat, longitude0+deltaLon);
     }
     
     private synchronized void calculateRotationMatrix() {
@@ -182,6 +249,12 @@ public class PanodroidVortexRenderer implements GLSurfaceView.Renderer {
     }
     
     public void setRotation(float rotationLatitudeDeg, float rotationLongitudeDeg) {
+    	updateRotation(rotationLatitudeDeg, rotationLongitudeDeg);
+    	
+    	frameScheduler.invalidate();
+    }
+    
+    private void updateRotation(float rotationLatitudeDeg, float rotationLongitudeDeg) {
     	this.rotationLongitudeDeg = rotationLongitudeDeg;
     	this.rotationLatitudeDeg = rotationLatitudeDeg;
     	
@@ -210,6 +283,19 @@ public class PanodroidVortexRenderer implements GLSurfaceView.Renderer {
     	return fovDeg;
     }
     
+    public synchronized void setFov(float fovDeg) {
+    	if (fovDeg < GlobalConstants.MIN_FOV_DEG) {
+    		fovDeg = GlobalConstants.MIN_FOV_DEG;
+    	} else if (fovDeg > GlobalConstants.MAX_FOV_DEG) {
+    		fovDeg = GlobalConstants.MAX_FOV_DEG;
+    	}
+    	
+    	this.fovDeg = fovDeg;
+    	isProjectionChanged = true;
+    	
+    	frameScheduler.invalidate();
+    }
+    
     public float getHFovDeg() {
     	float viewDiagonal = (float) Math.sqrt(surfaceHeight*surfaceHeight + surfaceWidth*surfaceWidth);
     	
@@ -332,6 +418,8 @@ public class PanodroidVortexRenderer implements GLSurfaceView.Renderer {
     
 	@Override
 	public void onDrawFrame(GL10 gl) {
+		frameScheduler.onFrameStart();
+		
         gl.glClear(GL10.GL_COLOR_BUFFER_BIT);
         
     	gl.glMatrixMode(GL10.GL_MODELVIEW);
@@ -339,24 +427,229 @@ public class PanodroidVortexRenderer implements GLSurfaceView.Renderer {
     	
     	doKineticRotation();
     	
+    	float viewX, viewY, viewZ;
     	synchronized (this) {
+    		if (isProjectionChanged) {
+    			setProjection(gl);
+    			gl.glMatrixMode(GL10.GL_MODELVIEW);
+    			isProjectionChanged = false;
+    		}
+    		
     		gl.glLoadMatrixf(rotationMatrix, 0);
+    		
+    		// The viewer looks along the negative z axis of the eye coordinate system.
+    		// In world coordinates, this is the negative third row of the rotation matrix.
+    		viewX = -rotationMatrix[2];
+    		viewY = -rotationMatrix[6];
+    		viewZ = -rotationMatrix[10];
+    		
+    		for (int faceNo = 0; faceNo < isFaceVisible.length; faceNo++) {
+    			isFaceVisible[faceNo] = faceVisibility.isVisible(rotationMatrix, faceCorners[faceNo]);
+    		}
     	}
+    	
+    	boolean needsNextFrame = textures.uploadPending(gl, viewX, viewY, viewZ);
         
         //gl.glRotatef(rotationLongitude, 0.0f, 1.0f, 0.0f);
         
+        int drawnFaceCnt;
+        if (atlasVertexBuffer != null) {
+        	drawnFaceCnt = drawAtlas(gl);
+        } else {
+        	drawnFaceCnt = drawFaces(gl);
+        }
+        
+        faceVisibility.countFrame(drawnFaceCnt);
+        if (faceVisibility.getFrameCount() % FACE_STATISTICS_INTERVAL == 0) {
+        	Log.i(LOG_TAG, "Faces drawn per frame: " + faceVisibility.getAverageFacesPerFrame());
+        }
+        
+        if (tileManager != null) {
+        	needsNextFrame |= drawTiles(gl, viewX, viewY, viewZ);
+        }
+        
+        stopFrameTimer();
+        
+        synchronized (this) {
+        	needsNextFrame |= isKineticRotationActive;
+        }
+        frameScheduler.onFrameEnd(needsNextFrame);
+	}
+	
+	// Draws the visible faces from their own textures, one by one.
+	private int drawFaces(GL10 gl) {
         gl.glVertexPointer(3, GL10.GL_FLOAT, 0, cubeVertexBuffer);
         
+        int drawnFaceCnt = 0;
         for (CubicPano.TextureFaces face : CubicPano.TextureFaces.values()) {
         	int faceNo = face.ordinal();
         	
-         	gl.glBindTexture(GL10.GL_TEXTURE_2D, textureIds[faceNo]);
+        	if (!isFaceVisible[faceNo]) {
+        		continue;
+        	}
+        	
+        	if (!textures.isResident(faceNo)) {
+        		// Will be uploaded in one of the next frames.
+        		continue;
+        	}
+        	
+         	gl.glBindTexture(GL10.GL_TEXTURE_2D, textures.getTextureId(faceNo));
         	gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, faceTextureCoordinates[faceNo]);
         	
            	// For each face, we have to draw 4 vertices
         	// (triangle strip with two triangles).
         	gl.glDrawElements(GL10.GL_TRIANGLE_STRIP, 4, GL10.GL_UNSIGNED_SHORT, faceVertexIndices[faceNo]);
+        	drawnFaceCnt++;
         }
+        
+        return drawnFaceCnt;
+	}
+	
+	// Draws the faces from the atlas texture. The triangles of the visible resident 
+	// faces are collected into one index buffer, so the texture is bound once and
+	// all faces are drawn with a single call.
+	private int drawAtlas(GL10 gl) {
+		atlasIndexBuffer.clear();
+		int drawnFaceCnt = 0;
+		for (int faceNo = 0; faceNo < FACE_CNT; faceNo++) {
+			if (!isFaceVisible[faceNo] || !textures.isResident(faceNo)) {
+				continue;
+			}
+			
+			atlasIndexBuffer.put(atlasFaceIndices, 6*faceNo, 6);
+			drawnFaceCnt++;
+		}
+		atlasIndexBuffer.position(0);
+		
+		if (drawnFaceCnt == 0) {
+			return 0;
+		}
+		
+		gl.glBindTexture(GL10.GL_TEXTURE_2D, textures.getTextureId(0));
+		gl.glVertexPointer(3, GL10.GL_FLOAT, 0, atlasVertexBuffer);
+		gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, atlasTexCoordBuffer);
+		gl.glDrawElements(GL10.GL_TRIANGLES, 6*drawnFaceCnt, GL10.GL_UNSIGNED_SHORT, atlasIndexBuffer);
+		
+		return drawnFaceCnt;
+	}
+	
+	// Draws tiles over the faces if the current field of view needs more details
+	// than the faces provide. After the level has changed, the tiles of the former
+	// level are shown until all visible tiles of the new level are there. Returns
+	// true if loaded tiles are still waiting for upload.
+	private boolean drawTiles(GL10 gl, float viewX, float viewY, float viewZ) {
+		int neededFaceSize = (int) (90.0f/getHFovDeg() * surfaceWidth + 0.5f);
+		int level = lodController.selectLevel(neededFaceSize);
+		
+		if (level < 0 && tileLevel >= 0) {
+			// The faces are sufficient (and always there). Free all tiles.
+			tileManager.dropOtherLevels(gl, -1);
+			tileLevel = -1;
+		}
+		
+		if (level < 0) {
+			return false;
+		}
+		
+		tileManager.beginFrame();
+		
+		// Tiles replace the faces below them, and they fill their textures 
+		// differently than the faces.
+		gl.glDisable(GL10.GL_BLEND);
+		gl.glMatrixMode(GL10.GL_TEXTURE);
+		gl.glPushMatrix();
+		gl.glLoadIdentity();
+		
+		if (tileLevel >= 0 && tileLevel != level) {
+			tileManager.draw(gl, tileLevel, viewX, viewY, viewZ, fovDeg, isFaceVisible, false);
+		}
+		
+		boolean pending = tileManager.draw(gl, level, viewX, viewY, viewZ, fovDeg, isFaceVisible, true);
+		if (!pending && level != tileLevel) {
+			tileManager.dropOtherLevels(gl, level);
+			tileLevel = level;
+		}
+		
+		gl.glPopMatrix();
+		gl.glMatrixMode(GL10.GL_MODELVIEW);
+		gl.glEnable(GL10.GL_BLEND);
+		
+		return tileManager.isUploadDeferred();
+	}
+	
+	// Collects the corners of the triangle strip of each face for the visibility
+	// test. The tile manager splits the faces into tiles. If the faces are placed
+	// in an atlas, the geometry of all faces is also combined into one vertex
+	// and index buffer.
+	private void setupFaceGeometry() {
+		boolean isAtlas = textures.isAtlas();
+		float[] atlasVertices = new float[FACE_CNT*4*3];
+		float[] atlasTexCoords = new float[FACE_CNT*4*2];
+		short[] atlasIndices = new short[FACE_CNT*6];
+		
+		for (CubicPanoNative.TextureFaces face : CubicPanoNative.TextureFaces.values()) {
+			int faceNo = face.ordinal();
+			float[] vertices = new float[4*3];
+			float[] texCoords = new float[4*2];
+			
+			for (int i = 0; i < 4; i++) {
+				int vertexNo = faceVertexIndices[faceNo].get(i);
+				for (int j = 0; j < 3; j++) {
+					vertices[3*i+j] = cubeVertexBuffer.get(3*vertexNo+j);
+				}
+				for (int j = 0; j < 2; j++) {
+					texCoords[2*i+j] = faceTextureCoordinates[faceNo].get(2*vertexNo+j);
+				}
+			}
+			
+			faceCorners[faceNo] = vertices;
+			if (tileManager != null) {
+				tileManager.setFaceGeometry(faceNo, vertices, texCoords);
+			}
+			
+			if (isAtlas) {
+				System.arraycopy(vertices, 0, atlasVertices, faceNo*4*3, 4*3);
+				float[] faceAtlasTexCoords = texCoords.clone();
+				textures.mapToAtlas(faceNo, faceAtlasTexCoords);
+				System.arraycopy(faceAtlasTexCoords, 0, atlasTexCoords, faceNo*4*2, 4*2);
+				
+				// The triangle strip (0, 1, 2, 3) as two triangles with the same 
+				// vertex order (clockwise when looking onto the inner side).
+				short first = (short) (4*faceNo);
+				short[] indices = {first, (short) (first+1), (short) (first+2), 
+						(short) (first+2), (short) (first+1), (short) (first+3)};
+				System.arraycopy(indices, 0, atlasIndices, 6*faceNo, 6);
+			}
+		}
+		
+		if (isAtlas) {
+			atlasVertexBuffer = toFloatBuffer(atlasVertices);
+			atlasTexCoordBuffer = toFloatBuffer(atlasTexCoords);
+			atlasFaceIndices = atlasIndices;
+			
+			ByteBuffer byteBuffer = ByteBuffer.allocateDirect(atlasIndices.length*Short.SIZE/8);
+			byteBuffer.order(ByteOrder.nativeOrder());
+			atlasIndexBuffer = byteBuffer.asShortBuffer();
+		} else {
+			atlasVertexBuffer = null;
+		}
+	}
+	
+	private static FloatBuffer toFloatBuffer(float[] values) {
+		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(values.length*Float.SIZE/8);
+		byteBuffer.order(ByteOrder.nativeOrder());
+		FloatBuffer buffer = byteBuffer.asFloatBuffer();
+		buffer.put(values);
+		buffer.position(0);
+		
+		return buffer;
+	}
+	
+	// Stops background threads of the renderer. Called when the view is not used anymore.
+	public void release() {
+		if (tileManager != null) {
+			tileManager.terminate();
+		}
 	}
 
 	private void setProjection(GL10 gl) {
@@ -369,65 +662,26 @@ public class PanodroidVortexRenderer implements GLSurfaceView.Renderer {
 	    float fovYDeg = getVFovDeg();
 	    
 	    GLU.gluPerspective(gl, fovYDeg, aspect, dNear, dFar);
+	    
+	    faceVisibility.setProjection(fovYDeg, aspect);
 	}
 	
 	void setupTextures(GL10 gl) {
 		gl.glMatrixMode(GL10.GL_TEXTURE);
 		gl.glLoadIdentity();
 		
-		gl.glGenTextures(6, textureIds, 0);
+		gl.glBlendFunc(GL10.GL_ONE, GL10.GL_SRC_COLOR);
+		
+		// Faces are not uploaded here, but in the background or while drawing the first frames.
+		textures.onContextCreated(gl);
+		
+		// Faces might not fill their textures completely.
+		float scale = textures.getTextureCoordinateScale();
+		gl.glScalef(scale, scale, 1.0f);
 		
 		for (CubicPanoNative.TextureFaces face : CubicPanoNative.TextureFaces.values()) {
 			int faceNo = face.ordinal();
 			
-			gl.glBindTexture(GL10.GL_TEXTURE_2D, textureIds[faceNo]);
-			gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
-			gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
-			//gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_NEAREST);
-			//gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_NEAREST);
-			
-			gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
-			gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
-			//gl.glTexEnvf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_ENV_MODE, GL10.GL_DECAL);
-			gl.glBlendFunc(GL10.GL_ONE, GL10.GL_SRC_COLOR);
-			
-			Bitmap bm = null;
-			
-			Assert.assertTrue(cubicPano != null);
-			bm = cubicPano.getFace(face);
-			
-			//bm =  BitmapFactory.decodeResource(view.getActivity().getResources(), R.drawable.texture);
-			//Assert.assertTrue(isPowerOfTwo(bm.getWidth()));
-			/*
-			switch (face) {
-			case top :
-				bm =  BitmapFactory.decodeResource(view.getActivity().getResources(), R.drawable.top);
-				break;
-			case bottom :
-				bm =  BitmapFactory.decodeResource(view.getActivity().getResources(), R.drawable.bottom);
-				break;
-			case left :
-				bm =  BitmapFactory.decodeResource(view.getActivity().getResources(), R.drawable.left);
-				break;
-			case right :
-				bm =  BitmapFactory.decodeResource(view.getActivity().getResources(), R.drawable.right);
-				break;
-			case front :
-				bm =  BitmapFactory.decodeResource(view.getActivity().getResources(), R.drawable.front);
-				break;
-			case back :
-				bm =  BitmapFactory.decodeResource(view.getActivity().getResources(), R.drawable.back);
-				break;
-			default :
-				Assert.fail();
-			}
-			*/
-			GLUtils.texImage2D(GL10.GL_TEXTURE_2D, 0, bm, 0);
-			
-			// If we save the state of the activity, we should not delete the
-			// original bitmaps. Otherwise, we have to reload them from the network.
-			//bm.recycle();
-			
 			// For each face, we have to define 8 coordinates although only 4 are used 
 			// at a time -- glDrawElements() uses the same indices as for the vertex array
 			// to select texture coordinates. Coordinates that are not used are marked
@@ -559,7 +813,18 @@ public class PanodroidVortexRenderer implements GLSurfaceView.Renderer {
 		
 		initCube(gl);
 		
+		// Remember the maximum texture size for planning the face size of the next panorama.
+		int[] maxTextureSize = new int[1];
+		gl.glGetIntegerv(GL10.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+		TextureSizePlanner.setMaxGLTextureSize(view.getContext(), maxTextureSize[0]);
+		
 		setupTextures(gl);
+		setupFaceGeometry();
+		
+		if (tileManager != null) {
+			tileManager.onContextCreated();
+			tileLevel = -1;
+		}
 	}
 
 }
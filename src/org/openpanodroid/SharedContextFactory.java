@@ -0,0 +1,100 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import javax.microedition.khronos.egl.EGL10;
+import javax.microedition.khronos.egl.EGLConfig;
+import javax.microedition.khronos.egl.EGLContext;
+import javax.microedition.khronos.egl.EGLDisplay;
+
+import android.opengl.GLSurfaceView;
+import android.util.Log;
+
+// Creates the EGL context of the GL view (like the default factory of 
+// GLSurfaceView) and remembers it, so other threads can create contexts 
+// sharing textures with it. Before the context is destroyed, the listener is
+// told to release all shared contexts.
+public class SharedContextFactory implements GLSurfaceView.EGLContextFactory {
+	private static final String LOG_TAG = SharedContextFactory.class.getSimpleName();
+	
+	private EGL10 egl = null;
+	private EGLDisplay display = null;
+	private EGLConfig config = null;
+	private EGLContext context = null;
+	
+	private Listener listener = null;
+	
+	public interface Listener {
+		// Called on the GL thread before the context is destroyed.
+		public void onContextDestroying();
+	}
+	
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	@Override
+	public EGLContext createContext(EGL10 egl, EGLDisplay display, EGLConfig config) {
+		EGLContext context = egl.eglCreateContext(display, config, EGL10.EGL_NO_CONTEXT, null);
+		
+		synchronized (this) {
+			this.egl = egl;
+			this.display = display;
+			this.config = config;
+			this.context = context;
+		}
+		
+		return context;
+	}
+
+	@Override
+	public void destroyContext(EGL10 egl, EGLDisplay display, EGLContext context) {
+		Listener l;
+		synchronized (this) {
+			l = listener;
+			this.context = null;
+		}
+		
+		if (l != null) {
+			l.onContextDestroying();
+		}
+		
+		if (!egl.eglDestroyContext(display, context)) {
+			Log.e(LOG_TAG, "Failed to destroy context: " + egl.eglGetError());
+		}
+	}
+	
+	public synchronized EGL10 getEGL() {
+		return egl;
+	}
+	
+	public synchronized EGLDisplay getDisplay() {
+		return display;
+	}
+	
+	public synchronized EGLConfig getConfig() {
+		return config;
+	}
+	
+	// Current context of the GL view or null if there is none.
+	public synchronized EGLContext getContext() {
+		return context;
+	}
+}
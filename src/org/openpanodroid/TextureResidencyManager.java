@@ -0,0 +1,401 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import java.util.Arrays;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import junit.framework.Assert;
+
+import org.openpanodroid.panoutils.android.CubicPanoNative.TextureFaces;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// Keeps track of which faces of the panorama are resident as textures in the 
+// current GL context. After a new context has been created (initially or 
+// after the old context was lost), no face is resident. Missing faces are 
+// then uploaded, starting with the faces closest to the current view 
+// direction. So the first frame does not have to wait for all six faces.
+//
+// Where possible, faces are uploaded in the background by an 
+// AsyncTextureUploader. Otherwise, they are uploaded lazily on the GL thread,
+// a few per frame. Faces of an atlas are always uploaded on the GL thread: 
+// they go into the texture the renderer is drawing from, and changing a 
+// texture in one context while another context renders from it is undefined 
+// in OpenGL ES 1.x.
+//
+// Faces may have any size. If the GL implementation does not support textures 
+// whose size is not a power of two, each face is placed in the lower left 
+// corner of the next larger power-of-two texture, and texture coordinates 
+// have to be scaled by getTextureCoordinateScale().
+//
+// If the GL implementation supports large enough textures, all faces are 
+// placed in a single atlas texture of 3x2 faces instead of six textures, so 
+// the whole cube can be drawn with one draw call. Texture coordinates of a 
+// face have to be mapped into the atlas by mapToAtlas() then.
+public class TextureResidencyManager implements SharedContextFactory.Listener {
+	private static final String LOG_TAG = TextureResidencyManager.class.getSimpleName();
+	
+	private static final int MAX_UPLOADS_PER_FRAME = 1;
+	
+	private static final int FACE_CNT = TextureFaces.values().length;
+	
+	private static final int ATLAS_COLUMNS = 3;
+	private static final int ATLAS_ROWS = 2;
+	
+	// Direction from the center of the cube to the center of each face 
+	// (indexed by face ordinal).
+	private static final float[][] FACE_DIRECTIONS = {
+		{0.0f, 0.0f, 1.0f},  // front
+		{0.0f, 0.0f, -1.0f}, // back
+		{0.0f, 1.0f, 0.0f},  // top
+		{0.0f, -1.0f, 0.0f}, // bottom
+		{1.0f, 0.0f, 0.0f},  // left
+		{-1.0f, 0.0f, 0.0f}  // right
+	};
+	
+	private FaceStore faceStore;
+	private SharedContextFactory contextFactory;
+	private AsyncTextureUploader uploader = null;
+	
+	private int[] textureIds = new int[FACE_CNT];
+	// Size of the textures holding the faces (>= face size).
+	private int textureSize;
+	// Set if all faces are placed in one atlas texture.
+	private boolean isAtlas = false;
+	private int atlasWidth, atlasHeight;
+	private boolean[] resident = new boolean[FACE_CNT];
+	// Faces currently being uploaded.
+	private boolean[] uploading = new boolean[FACE_CNT];
+	private int residentCnt = 0;
+	
+	private float viewX = 0.0f, viewY = 0.0f, viewZ = -1.0f;
+	
+	private long tContextCreated;
+	
+	private Listener listener = null;
+	
+	// Notified if a face became resident in the background, or if faces have to be
+	// uploaded on the GL thread (in the next frames) since the background uploader 
+	// has failed. Called on the thread of the background uploader.
+	public interface Listener {
+		public void onTexturesChanged();
+	}
+	
+	// If contextFactory is null, faces are always uploaded on the GL thread.
+	public TextureResidencyManager(FaceStore faceStore, SharedContextFactory contextFactory) {
+		Assert.assertTrue(faceStore != null);
+		this.faceStore = faceStore;
+		this.contextFactory = contextFactory;
+		
+		if (contextFactory != null) {
+			contextFactory.setListener(this);
+		}
+	}
+	
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	// Has to be called on the GL thread whenever a new GL context was created. 
+	// Textures of the former context (if any) are gone.
+	public void onContextCreated(GL10 gl) {
+		tContextCreated = SystemClock.elapsedRealtime();
+		
+		stopUploader();
+		
+		int faceSize = faceStore.getFaceSize();
+		boolean isNPOTSupported = isNPOTSupported(gl);
+		if (isPowerOfTwo(faceSize) || isNPOTSupported) {
+			textureSize = faceSize;
+		} else {
+			textureSize = toPowerOfTwo(faceSize);
+			Log.i(LOG_TAG, "Non-power-of-two textures not supported. Padding " + faceSize + 
+					" pixel faces to " + textureSize + " pixels.");
+		}
+		
+		// The atlas is only used if it does not need more memory than six textures.
+		int[] maxTextureSize = new int[1];
+		gl.glGetIntegerv(GL10.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+		atlasWidth = ATLAS_COLUMNS*faceSize;
+		atlasHeight = ATLAS_ROWS*faceSize;
+		if (!isNPOTSupported) {
+			atlasWidth = toPowerOfTwo(atlasWidth);
+			atlasHeight = toPowerOfTwo(atlasHeight);
+		}
+		isAtlas = atlasWidth <= maxTextureSize[0] && atlasHeight <= maxTextureSize[0] && 
+				atlasWidth*atlasHeight <= FACE_CNT*textureSize*textureSize;
+		
+		if (isAtlas) {
+			Log.i(LOG_TAG, "Placing faces in a " + atlasWidth + "x" + atlasHeight + " atlas texture");
+			gl.glGenTextures(1, textureIds, 0);
+			Arrays.fill(textureIds, textureIds[0]);
+			setTextureParameters(gl, textureIds[0]);
+			gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA, atlasWidth, atlasHeight, 0, 
+					GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, null);
+		} else {
+			gl.glGenTextures(FACE_CNT, textureIds, 0);
+			for (int i = 0; i < FACE_CNT; i++) {
+				setTextureParameters(gl, textureIds[i]);
+			}
+		}
+		
+		synchronized (this) {
+			Arrays.fill(resident, false);
+			Arrays.fill(uploading, false);
+			residentCnt = 0;
+		}
+		
+		if (!isAtlas && contextFactory != null && contextFactory.getContext() != null) {
+			AsyncTextureUploader u = new AsyncTextureUploader(contextFactory, this);
+			synchronized (this) {
+				uploader = u;
+			}
+			u.start();
+		}
+	}
+	
+	private static void setTextureParameters(GL10 gl, int textureId) {
+		gl.glBindTexture(GL10.GL_TEXTURE_2D, textureId);
+		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+	}
+	
+	// Called on the GL thread before the context is destroyed.
+	@Override
+	public void onContextDestroying() {
+		stopUploader();
+	}
+	
+	private void stopUploader() {
+		AsyncTextureUploader u;
+		synchronized (this) {
+			u = uploader;
+			uploader = null;
+		}
+		
+		if (u != null) {
+			u.terminate();
+		}
+	}
+	
+	// Called by the background uploader if it cannot upload faces. The missing
+	// faces are uploaded on the GL thread then.
+	void onUploaderFailed() {
+		Listener l;
+		synchronized (this) {
+			uploader = null;
+			Arrays.fill(uploading, false);
+			l = listener;
+		}
+		
+		if (l != null) {
+			l.onTexturesChanged();
+		}
+	}
+	
+	// Uploads some of the missing faces on the GL thread, most important first, 
+	// unless the faces are uploaded in the background. The view direction is 
+	// given in world coordinates. Returns true if faces still have to be uploaded 
+	// on the GL thread afterwards, i.e., further frames are needed. Faces uploaded 
+	// in the background are announced to the listener.
+	public boolean uploadPending(GL10 gl, float viewX, float viewY, float viewZ) {
+		synchronized (this) {
+			this.viewX = viewX;
+			this.viewY = viewY;
+			this.viewZ = viewZ;
+			
+			if (uploader != null) {
+				return false;
+			}
+		}
+		
+		for (int i = 0; i < MAX_UPLOADS_PER_FRAME && getResidentCount() < FACE_CNT; i++) {
+			int faceNo = takePendingFace();
+			upload(gl, faceNo);
+			publish(faceNo);
+		}
+		
+		return getResidentCount() < FACE_CNT;
+	}
+	
+	// Returns the most important face that is neither resident nor being uploaded, 
+	// and marks it as being uploaded. Returns -1 if there is no such face.
+	synchronized int takePendingFace() {
+		int mostImportant = -1;
+		float maxCos = -2.0f;
+		
+		for (int i = 0; i < FACE_CNT; i++) {
+			if (resident[i] || uploading[i]) {
+				continue;
+			}
+			
+			float[] dir = FACE_DIRECTIONS[i];
+			float cos = dir[0]*viewX + dir[1]*viewY + dir[2]*viewZ;
+			if (cos > maxCos) {
+				maxCos = cos;
+				mostImportant = i;
+			}
+		}
+		
+		if (mostImportant >= 0) {
+			uploading[mostImportant] = true;
+		}
+		
+		return mostImportant;
+	}
+	
+	// Uploads a face with the given GL instance (of the GL thread or of the
+	// background uploader).
+	void upload(GL10 gl, int faceNo) {
+		TextureFaces face = TextureFaces.values()[faceNo];
+		int faceSize = faceStore.getFaceSize();
+		
+		// Faces are stored as raw RGBA pixels, which are uploaded as they are.
+		gl.glBindTexture(GL10.GL_TEXTURE_2D, textureIds[faceNo]);
+		if (isAtlas) {
+			gl.glTexSubImage2D(GL10.GL_TEXTURE_2D, 0, getAtlasColumn(faceNo)*faceSize, getAtlasRow(faceNo)*faceSize, 
+					faceSize, faceSize, GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, faceStore.getFace(face));
+		} else if (textureSize == faceSize) {
+			gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA, faceSize, faceSize, 0, 
+					GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, faceStore.getFace(face));
+		} else {
+			gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA, textureSize, textureSize, 0, 
+					GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, null);
+			gl.glTexSubImage2D(GL10.GL_TEXTURE_2D, 0, 0, 0, faceSize, faceSize, 
+					GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, faceStore.getFace(face));
+		}
+	}
+	
+	// Marks an uploaded face as resident, so the renderer may use it.
+	void publish(int faceNo) {
+		Listener l = null;
+		
+		synchronized (this) {
+			if (!uploading[faceNo]) {
+				// Uploaded for a context that has been replaced in between.
+				return;
+			}
+			
+			uploading[faceNo] = false;
+			resident[faceNo] = true;
+			residentCnt++;
+			
+			if (residentCnt == FACE_CNT) {
+				Log.i(LOG_TAG, "All faces resident " + (SystemClock.elapsedRealtime()-tContextCreated) + 
+						" ms after context creation");
+			}
+			
+			if (uploader != null) {
+				// Uploaded in the background.
+				l = listener;
+			}
+		}
+		
+		if (l != null) {
+			l.onTexturesChanged();
+		}
+	}
+	
+	public synchronized boolean isResident(int faceNo) {
+		return resident[faceNo];
+	}
+	
+	public int getTextureId(int faceNo) {
+		return textureIds[faceNo];
+	}
+	
+	// Factor for texture coordinates in the range [0, 1] to address the face
+	// within its texture.
+	public float getTextureCoordinateScale() {
+		int faceSize = faceStore.getFaceSize();
+		if (isAtlas || textureSize == faceSize) {
+			return 1.0f;
+		}
+		
+		// Texture coordinate 1 addresses the center of the last texel of the face. 
+		// Otherwise, linear filtering would mix in the padding.
+		return (faceSize-0.5f)/textureSize;
+	}
+	
+	public boolean isAtlas() {
+		return isAtlas;
+	}
+	
+	// Maps texture coordinates (s, t) in the range [0, 1] of a face to the position
+	// of the face in the atlas (in place).
+	public void mapToAtlas(int faceNo, float[] texCoords) {
+		Assert.assertTrue(isAtlas);
+		int faceSize = faceStore.getFaceSize();
+		
+		// Coordinates 0 and 1 address the centers of the first and last texel of
+		// the face. Otherwise, linear filtering would mix in the neighboring faces.
+		for (int i = 0; i < texCoords.length/2; i++) {
+			float s = texCoords[2*i];
+			float t = texCoords[2*i+1];
+			texCoords[2*i] = (getAtlasColumn(faceNo)*faceSize + 0.5f + s*(faceSize-1))/atlasWidth;
+			texCoords[2*i+1] = (getAtlasRow(faceNo)*faceSize + 0.5f + t*(faceSize-1))/atlasHeight;
+		}
+	}
+	
+	private static int getAtlasColumn(int faceNo) {
+		return faceNo % ATLAS_COLUMNS;
+	}
+	
+	private static int getAtlasRow(int faceNo) {
+		return faceNo/ATLAS_COLUMNS;
+	}
+	
+	private static boolean isNPOTSupported(GL10 gl) {
+		String extensions = gl.glGetString(GL10.GL_EXTENSIONS);
+		if (extensions == null) {
+			return false;
+		}
+		
+		// The limited variant is sufficient, since we neither use mipmaps nor
+		// repeating textures.
+		return (extensions.contains("GL_OES_texture_npot") || 
+				extensions.contains("GL_ARB_texture_non_power_of_two") || 
+				extensions.contains("GL_IMG_texture_npot") || 
+				extensions.contains("GL_APPLE_texture_2D_limited_npot"));
+	}
+	
+	private static boolean isPowerOfTwo(int number) {
+		return (number & (number-1)) == 0;
+	}
+	
+	public static int toPowerOfTwo(int number) {
+		int n_2 = 1;
+		
+		while (n_2 < number) {
+			n_2 *= 2;
+		}
+		
+		return n_2;
+	}
+	
+	public synchronized int getResidentCount() {
+		return residentCnt;
+	}
+}
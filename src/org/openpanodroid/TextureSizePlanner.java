@@ -0,0 +1,198 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Debug;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+// Chooses the face size of a panorama from the memory budget of the device.
+// The panorama has already been decoded when the face size is planned, so only
+// the memory a candidate size adds is estimated (starting with the optimal 
+// size for the display):
+//
+// - conversion: the bitmap the faces are calculated into, next to the decoded 
+//   panorama. The faces themselves are stored in a memory-mapped file.
+// - upload: the panorama has been released; six face textures plus one face 
+//   in transit to the GL driver.
+//
+// The largest candidate that fits into the budget (the heap limit of the 
+// application minus a safety margin and the memory used by other parts of the
+// application) is chosen. Faces are never larger than the maximum texture size
+// of the GL implementation.
+public class TextureSizePlanner {
+	private static final String LOG_TAG = TextureSizePlanner.class.getSimpleName();
+	
+	private static final String MAX_GL_TEXTURE_SIZE_PREF = "maxGLTextureSize";
+	
+	// Assumed if no GL context has been created yet.
+	private static final int DEFAULT_MAX_GL_TEXTURE_SIZE = 2048;
+	
+	private static final int BYTES_PER_PIXEL = 4;
+	
+	// Fraction of the memory budget we plan to use.
+	private static final float SAFETY_FACTOR = 0.75f;
+	
+	// Candidate sizes are decreased by this factor.
+	private static final float SIZE_STEP = 0.8f;
+	
+	private static final int MIN_FACE_SIZE = 256;
+	
+	public static final int FACE_SIZE_ALIGNMENT = 16;
+	
+	private long budget; // [byte]
+	private long used; // [byte]
+	private int maxGLTextureSize;
+	
+	public TextureSizePlanner(Context context) {
+		ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+		// The application requests a large heap (see manifest), which is 
+		// supported from Honeycomb on.
+		int memoryClass;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			memoryClass = activityManager.getLargeMemoryClass();
+		} else {
+			memoryClass = activityManager.getMemoryClass();
+		}
+		budget = memoryClass*1024L*1024L;
+		
+		// Bitmap pixels are allocated on the Java heap from Honeycomb on. Before, 
+		// they are allocated on the native heap, but count against the same limit.
+		Runtime runtime = Runtime.getRuntime();
+		used = runtime.totalMemory() - runtime.freeMemory();
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+			used += Debug.getNativeHeapAllocatedSize();
+		}
+		
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		maxGLTextureSize = prefs.getInt(MAX_GL_TEXTURE_SIZE_PREF, DEFAULT_MAX_GL_TEXTURE_SIZE);
+	}
+	
+	// The maximum texture size is only known after a GL context has been created.
+	// It is remembered for planning the next panorama. This is called on the GL 
+	// thread, so the preference is written asynchronously (apply() instead of 
+	// commit()).
+	public static void setMaxGLTextureSize(Context context, int maxGLTextureSize) {
+		SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		if (maxGLTextureSize > 0 && prefs.getInt(MAX_GL_TEXTURE_SIZE_PREF, 0) != maxGLTextureSize) {
+			prefs.edit().putInt(MAX_GL_TEXTURE_SIZE_PREF, maxGLTextureSize).apply();
+		}
+	}
+	
+	public int getMaxGLTextureSize() {
+		return maxGLTextureSize;
+	}
+	
+	// Returns the face size for the given (already decoded) panorama. optimalFaceSize
+	// is the size that would give the best quality on this display.
+	public int plan(int optimalFaceSize, int panoWidth, int panoHeight) {
+		long panoBytes = (long) panoWidth*panoHeight*BYTES_PER_PIXEL;
+		// Memory for the upload, after the panorama has been released.
+		long available = getAvailableBytes(panoBytes);
+		// Memory for the conversion. The panorama is in memory already, so 
+		// this is what is left of the heap (the safety margin might have been 
+		// used up by the panorama).
+		long conversionAvailable = budget - used;
+		
+		if (panoBytes > available) {
+			Log.w(LOG_TAG, "Decoded panorama (" + panoBytes/1024 + " kB) alone exceeds the budget of " + 
+					available/1024 + " kB");
+		}
+		
+		int faceSize = Math.min(align(optimalFaceSize), alignDown(maxGLTextureSize));
+		
+		while (true) {
+			long conversionBytes = getFaceBytes(faceSize);
+			long uploadBytes = getUploadBytes(faceSize);
+			boolean fits = (conversionBytes <= conversionAvailable && uploadBytes <= available);
+			
+			if (fits || faceSize <= MIN_FACE_SIZE) {
+				Log.i(LOG_TAG, "Face size " + faceSize + " (optimal " + optimalFaceSize + 
+						", GL max " + maxGLTextureSize + "): conversion " + conversionBytes/1024 + 
+						" kB of " + conversionAvailable/1024 + " kB left, upload " + uploadBytes/1024 + 
+						" kB of " + available/1024 + " kB available (heap limit " + budget/1024 + " kB)" + 
+						(fits ? "" : " (exceeded)"));
+				return faceSize;
+			}
+			
+			faceSize = Math.max(MIN_FACE_SIZE, alignDown((int) (faceSize*SIZE_STEP)));
+		}
+	}
+	
+	// Returns the levels of a tile pyramid (given by their face sizes in ascending 
+	// order) that can be converted within the budget. The levels are calculated
+	// one after another from the decoded panorama, and the tiles go to disk right 
+	// away. So a level adds one face bitmap of the level size next to the face 
+	// bitmap of the base level (kept by the bitmap pool). The pyramid ends below
+	// the first level that does not fit.
+	public int[] planLevels(int faceSize, int[] levelSizes) {
+		long conversionAvailable = budget - used - getFaceBytes(faceSize);
+		
+		int levelCnt = 0;
+		while (levelCnt < levelSizes.length) {
+			long levelBytes = getFaceBytes(levelSizes[levelCnt]);
+			if (levelBytes > conversionAvailable) {
+				Log.i(LOG_TAG, "Tile level " + levelCnt + " (face size " + levelSizes[levelCnt] + 
+						") needs " + levelBytes/1024 + " kB; " + conversionAvailable/1024 + " kB left");
+				break;
+			}
+			levelCnt++;
+		}
+		
+		if (levelCnt == levelSizes.length) {
+			return levelSizes;
+		}
+		
+		int[] affordableLevelSizes = new int[levelCnt];
+		System.arraycopy(levelSizes, 0, affordableLevelSizes, 0, levelCnt);
+		
+		return affordableLevelSizes;
+	}
+	
+	// Budget minus the memory used by other parts of the application (i.e., 
+	// without the decoded panorama).
+	private long getAvailableBytes(long panoBytes) {
+		long baseline = Math.max(0, used - panoBytes);
+		return (long) (SAFETY_FACTOR*budget) - baseline;
+	}
+	
+	private static long getUploadBytes(int faceSize) {
+		// Many GL implementations keep textures in main memory.
+		return 7*getFaceBytes(faceSize);
+	}
+	
+	private static long getFaceBytes(int faceSize) {
+		return (long) faceSize*faceSize*BYTES_PER_PIXEL;
+	}
+	
+	// Rows of 16 pixels are a multiple of the usual memory alignments of 
+	// bitmaps and textures.
+	public static int align(int size) {
+		return ((size + FACE_SIZE_ALIGNMENT - 1)/FACE_SIZE_ALIGNMENT) * FACE_SIZE_ALIGNMENT;
+	}
+	
+	private static int alignDown(int size) {
+		return (size/FACE_SIZE_ALIGNMENT) * FACE_SIZE_ALIGNMENT;
+	}
+}
@@ -0,0 +1,169 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.openpanodroid.ioutils.ByteArrayPool;
+import org.openpanodroid.rest.BitmapDecoder;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+
+// Decodes thumbnails to exactly the given width (in pixels), keeping the 
+// aspect ratio. Large images are subsampled while decoding. Thumbnails are 
+// decoded to RGB_565, which takes half the memory of ARGB_8888; thumbnails 
+// have no alpha channel anyway. 
+//
+// Where supported (Honeycomb and later), the bitmap decoded before the final 
+// scaling step goes to the bitmap pool and is re-used as decode target for 
+// the next thumbnail of the same size.
+//
+// A decoder must only be used by one thread at a time.
+public class ThumbnailDecoder implements BitmapDecoder {
+	private static final String LOG_TAG = ThumbnailDecoder.class.getSimpleName();
+	
+	private static final int TEMP_STORAGE_SIZE = 16*1024;
+	private static final int INITIAL_BUFFER_SIZE = 32*1024;
+	
+	private int targetWidth;
+	private int targetDensity;
+	
+	private byte[] tempStorage = new byte[TEMP_STORAGE_SIZE];
+	
+	// The decoded thumbnail gets the given density, so it is drawn without 
+	// further scaling.
+	public ThumbnailDecoder(int targetWidth, int targetDensity) {
+		this.targetWidth = targetWidth;
+		this.targetDensity = targetDensity;
+	}
+	
+	public int getTargetWidth() {
+		return targetWidth;
+	}
+	
+	@Override
+	public Bitmap decode(byte[] data, int offset, int length) {
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		options.inTempStorage = tempStorage;
+		BitmapFactory.decodeByteArray(data, offset, length, options);
+		
+		int srcWidth = options.outWidth;
+		int srcHeight = options.outHeight;
+		if (srcWidth <= 0 || srcHeight <= 0) {
+			return null;
+		}
+		
+		int sampleSize = 1;
+		while (srcWidth/(2*sampleSize) >= targetWidth) {
+			sampleSize *= 2;
+		}
+		
+		options = new BitmapFactory.Options();
+		options.inSampleSize = sampleSize;
+		options.inPreferredConfig = Bitmap.Config.RGB_565;
+		options.inDither = true;
+		options.inScaled = false;
+		options.inTempStorage = tempStorage;
+		
+		BitmapPool pool = BitmapPool.getInstance();
+		Bitmap decodeTarget = null;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			options.inMutable = true;
+			// Before KitKat, the decode target must have exactly the size of the 
+			// image, and the image must not be subsampled.
+			if (sampleSize == 1) {
+				decodeTarget = pool.get(srcWidth, srcHeight, Bitmap.Config.RGB_565);
+				options.inBitmap = decodeTarget;
+			}
+		}
+		boolean reuse = (decodeTarget != null);
+		
+		Bitmap decoded;
+		try {
+			decoded = BitmapFactory.decodeByteArray(data, offset, length, options);
+		} catch (IllegalArgumentException ex) {
+			// The pooled bitmap could not be re-used for this image.
+			decodeTarget.recycle();
+			options.inBitmap = null;
+			reuse = false;
+			decoded = BitmapFactory.decodeByteArray(data, offset, length, options);
+		}
+		
+		if (decoded == null) {
+			pool.release(decodeTarget);
+			return null;
+		}
+		
+		if (decoded.getWidth() == targetWidth) {
+			// Nothing to scale. The decoded bitmap is the thumbnail.
+			decoded.setDensity(targetDensity);
+			return decoded;
+		}
+		
+		int targetHeight = Math.max(1, Math.round((float) srcHeight*targetWidth/srcWidth));
+		Bitmap thumbnail = Bitmap.createScaledBitmap(decoded, targetWidth, targetHeight, true);
+		thumbnail.setDensity(targetDensity);
+		
+		// Immutable bitmaps (before Honeycomb) are just recycled by the pool.
+		pool.release(decoded);
+		
+		Log.i(LOG_TAG, "Decoded " + srcWidth + "x" + srcHeight + " image to " + targetWidth + "x" + 
+				targetHeight + " thumbnail (" + thumbnail.getRowBytes()*targetHeight + " bytes" + 
+				(reuse ? ", decode target re-used)" : ")"));
+		
+		return thumbnail;
+	}
+	
+	@Override
+	public Bitmap decode(InputStream is) {
+		// Thumbnails are small. Read them completely, so the bounds can be 
+		// decoded first. The length is unknown, so the pooled buffer grows 
+		// while reading.
+		ByteArrayPool bufferPool = BitmapPool.getInstance().getBufferPool();
+		byte[] data = bufferPool.acquire(INITIAL_BUFFER_SIZE);
+		int length = 0;
+		
+		try {
+			while (true) {
+				if (length == data.length) {
+					data = bufferPool.grow(data, length, length+1);
+				}
+				
+				int readCnt = is.read(data, length, data.length-length);
+				if (readCnt == -1) {
+					break;
+				}
+				length += readCnt;
+			}
+			
+			return decode(data, 0, length);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			// The decoder does not keep a reference to the buffer.
+			bufferPool.release(data);
+		}
+	}
+}
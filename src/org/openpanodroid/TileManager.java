@@ -0,0 +1,584 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import org.openpanodroid.panoutils.android.CubicPanoNative.TextureFaces;
+
+import android.util.Log;
+
+// Streams tiles of a TilePyramid to the GPU depending on the view direction
+// and the field of view. Tiles of the level that matches the current field
+// of view are drawn over the base faces. Visible tiles that are not resident
+// yet are read from disk by a loader thread and uploaded on the GL thread (a
+// few per frame). If the textures of all resident tiles exceed the GPU budget,
+// the least recently drawn tiles are deleted. Tiles drawn in the current frame 
+// are never deleted, so the budget may be exceeded while more tiles are 
+// visible than it holds (e.g., at a small field of view on a large display).
+//
+// Except for the loader thread, all methods must be called on the GL thread.
+public class TileManager {
+	private static final String LOG_TAG = TileManager.class.getSimpleName();
+
+	private static final int GPU_BUDGET = 16*1024*1024; // [byte]
+	private static final int MAX_UPLOADS_PER_FRAME = 2;
+	private static final int BYTES_PER_PIXEL = 4;
+	private static final int TILE_BYTES = TilePyramid.TILE_SIZE*TilePyramid.TILE_SIZE*BYTES_PER_PIXEL;
+
+	private static final int FACE_CNT = TextureFaces.values().length;
+	private static final int BOUNDS_SIZE = 6;
+
+	private TilePyramid pyramid;
+
+	// Corners of each face in the order of its triangle strip (x, y, z), and their
+	// texture coordinates (s, t), which are 0 or 1.
+	private float[][] faceVertices = new float[FACE_CNT][];
+	private float[][] faceTexCoords = new float[FACE_CNT][];
+	
+	// Bounding cone of each tile of a level (null until the level is drawn the 
+	// first time): the direction to the tile center (x, y, z) and the angle 
+	// between the center and the corners (angle, cosine, sine). Indexed like 
+	// the tile keys.
+	private float[][] tileBounds;
+
+	// Resident tiles and tiles being loaded, in access order (least recently drawn first).
+	private LinkedHashMap<Integer, Tile> tiles = new LinkedHashMap<Integer, Tile>(64, 0.75f, true);
+	private int residentBytes = 0;
+
+	private Loader loader;
+
+	private int[] textureId = new int[1];
+
+	// Number of the current frame (see beginFrame()).
+	private int frameNo = 0;
+	private int drawnTileCnt = 0;
+	// Set if loaded tiles could not be uploaded in the last frame.
+	private boolean isUploadDeferred = false;
+	
+	private Listener listener = null;
+	
+	// Notified on the loader thread whenever a tile has been loaded (or was found 
+	// to be missing), so it can be uploaded with the next frame.
+	public interface Listener {
+		public void onTileLoaded();
+	}
+
+	private static class Tile {
+		public TextureFaces face;
+		public int level;
+		public int tx, ty;
+		public int width, height;
+
+		public int textureId = 0;
+		// Frame in which the tile was drawn the last time.
+		public int lastDrawnFrame = -1;
+		// Loaded pixels waiting for upload.
+		public ByteBuffer pixels = null;
+		public boolean loading = false;
+		// The tile is not (yet) in the pyramid.
+		public boolean missing = false;
+
+		public FloatBuffer vertices;
+		public FloatBuffer texCoords;
+
+		public Tile(TextureFaces face, int level, int tx, int ty, int width, int height) {
+			this.face = face;
+			this.level = level;
+			this.tx = tx;
+			this.ty = ty;
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	// Reads tiles from disk in the background.
+	private class Loader extends Thread {
+		private LinkedList<Tile> queue = new LinkedList<Tile>();
+		private LinkedList<ByteBuffer> freeBuffers = new LinkedList<ByteBuffer>();
+		private boolean terminate = false;
+
+		@Override
+		public void run() {
+			Tile tile;
+			while ((tile = dequeue()) != null) {
+				ByteBuffer buffer = acquireBuffer();
+				boolean found = pyramid.readTile(tile.face, tile.level, tile.tx, tile.ty, buffer);
+
+				Listener l;
+				synchronized (TileManager.this) {
+					tile.loading = false;
+					if (found) {
+						tile.pixels = buffer;
+					} else {
+						tile.missing = true;
+						releaseBuffer(buffer);
+					}
+					l = listener;
+				}
+				
+				if (l != null) {
+					l.onTileLoaded();
+				}
+			}
+		}
+
+		private synchronized Tile dequeue() {
+			while (queue.size() == 0 && !terminate) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return null;
+				}
+			}
+
+			if (terminate) {
+				return null;
+			}
+
+			return queue.removeFirst();
+		}
+
+		public synchronized void enqueue(Tile tile) {
+			queue.addLast(tile);
+			notify();
+		}
+
+		// Tiles that are not visible anymore need not be loaded.
+		public synchronized void clearQueue() {
+			for (Tile tile : queue) {
+				tile.loading = false;
+			}
+			queue.clear();
+		}
+
+		public synchronized ByteBuffer acquireBuffer() {
+			if (freeBuffers.size() > 0) {
+				return freeBuffers.removeFirst();
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(TILE_BYTES);
+			buffer.order(ByteOrder.nativeOrder());
+
+			return buffer;
+		}
+
+		public synchronized void releaseBuffer(ByteBuffer buffer) {
+			freeBuffers.addLast(buffer);
+		}
+
+		public synchronized void terminate() {
+			terminate = true;
+			notify();
+		}
+	}
+
+	public TileManager(TilePyramid pyramid) {
+		this.pyramid = pyramid;
+		tileBounds = new float[pyramid.getLevelCount()][];
+
+		loader = new Loader();
+		loader.start();
+	}
+
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+	
+	// Sets the geometry of a face: the vertices of its triangle strip
+	// (4*3 coordinates) and their texture coordinates (4*2 coordinates).
+	public void setFaceGeometry(int faceNo, float[] vertices, float[] texCoords) {
+		faceVertices[faceNo] = vertices;
+		faceTexCoords[faceNo] = texCoords;
+		
+		for (int level = 0; level < tileBounds.length; level++) {
+			tileBounds[level] = null;
+		}
+	}
+
+	// Has to be called whenever a new GL context was created. Textures of the
+	// former context (if any) are gone.
+	public synchronized void onContextCreated() {
+		loader.clearQueue();
+
+		for (Tile tile : tiles.values()) {
+			if (tile.pixels != null) {
+				loader.releaseBuffer(tile.pixels);
+			}
+		}
+		tiles.clear();
+		residentBytes = 0;
+	}
+
+	public TilePyramid getPyramid() {
+		return pyramid;
+	}
+
+	// Has to be called at the start of each frame before the tiles are drawn.
+	public void beginFrame() {
+		frameNo++;
+	}
+	
+	// Draws the visible tiles of the given level. The view direction is given in
+	// world coordinates; fovDeg is the diagonal field of view. The texture matrix
+	// must be the identity. Tiles of faces that are not visible are skipped. If 
+	// loadMissing is false, only resident tiles are drawn (e.g., tiles of the 
+	// level shown until the tiles of the next level are there).
+	// Returns true if visible tiles are still missing. Tiles exceeding the GPU 
+	// budget are deleted when the level to be loaded (loadMissing) has been drawn,
+	// so this has to be the last call of a frame.
+	public boolean draw(GL10 gl, int level, float viewX, float viewY, float viewZ, float fovDeg, 
+			boolean[] isFaceVisible, boolean loadMissing) {
+		if (level < 0 || level >= pyramid.getLevelCount()) {
+			return false;
+		}
+
+		int uploadCnt = 0;
+		boolean pending = false;
+		if (loadMissing) {
+			isUploadDeferred = false;
+		}
+		int tileCnt = pyramid.getTileCount(level);
+		float[] bounds = getTileBounds(level);
+		if (bounds == null) {
+			return false;
+		}
+		
+		float halfFov = (float) Math.toRadians(fovDeg/2.0);
+		float cosHalfFov = (float) Math.cos(halfFov);
+		float sinHalfFov = (float) Math.sin(halfFov);
+
+		for (TextureFaces face : TextureFaces.values()) {
+			int faceNo = face.ordinal();
+			if (!isFaceVisible[faceNo]) {
+				continue;
+			}
+
+			for (int ty = 0; ty < tileCnt; ty++) {
+				for (int tx = 0; tx < tileCnt; tx++) {
+					// A tile is visible if the angle between the view direction and the
+					// tile center is less than half of the field of view plus the angle
+					// between the tile center and its corners, i.e., if the cosine of 
+					// the angle to the center is at least cos(halfFov + tileAngle).
+					int i = BOUNDS_SIZE*((faceNo*tileCnt + ty)*tileCnt + tx);
+					float tileAngle = bounds[i+3];
+					if (halfFov + tileAngle < Math.PI) {
+						float cosMax = cosHalfFov*bounds[i+4] - sinHalfFov*bounds[i+5];
+						if (bounds[i]*viewX + bounds[i+1]*viewY + bounds[i+2]*viewZ < cosMax) {
+							continue;
+						}
+					}
+
+					Tile tile = getTile(face, level, tx, ty);
+					if (tile.textureId == 0) {
+						if (!loadMissing) {
+							continue;
+						}
+						
+						if (!requestTile(tile)) {
+							pending |= !tile.missing;
+							continue;
+						}
+						
+						if (uploadCnt >= MAX_UPLOADS_PER_FRAME) {
+							// Uploaded with the next frame.
+							pending = true;
+							isUploadDeferred = true;
+							continue;
+						}
+
+						upload(gl, tile);
+						uploadCnt++;
+					}
+
+					gl.glBindTexture(GL10.GL_TEXTURE_2D, tile.textureId);
+					gl.glVertexPointer(3, GL10.GL_FLOAT, 0, tile.vertices);
+					gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, tile.texCoords);
+					gl.glDrawArrays(GL10.GL_TRIANGLE_STRIP, 0, 4);
+					tile.lastDrawnFrame = frameNo;
+					drawnTileCnt++;
+				}
+			}
+		}
+
+		if (loadMissing) {
+			evict(gl);
+		}
+
+		if (loadMissing && frameNo % 300 == 0) {
+			Log.i(LOG_TAG, "Level " + level + ": " + tiles.size() + " tiles known, " + residentBytes/1024 +
+					" kB resident; " + (float) drawnTileCnt/frameNo + " tiles drawn per frame");
+		}
+
+		return pending;
+	}
+
+	// Returns true if the pixels of the tile have been loaded. Otherwise, the tile
+	// is queued for loading (if it has not been queued yet).
+	private synchronized boolean requestTile(Tile tile) {
+		if (tile.pixels != null) {
+			return true;
+		}
+
+		if (!tile.loading && !tile.missing) {
+			tile.loading = true;
+			loader.enqueue(tile);
+		}
+
+		return false;
+	}
+
+	private Tile getTile(TextureFaces face, int level, int tx, int ty) {
+		int tileCnt = pyramid.getTileCount(level);
+		int key = ((level*FACE_CNT + face.ordinal())*tileCnt + ty)*tileCnt + tx;
+
+		Tile tile;
+		synchronized (this) {
+			tile = tiles.get(key);
+		}
+
+		if (tile == null) {
+			tile = new Tile(face, level, tx, ty, pyramid.getTileSize(level, tx), pyramid.getTileSize(level, ty));
+			setupTileGeometry(tile);
+			synchronized (this) {
+				tiles.put(key, tile);
+			}
+		}
+
+		return tile;
+	}
+
+	private void upload(GL10 gl, Tile tile) {
+		int size = TilePyramid.TILE_SIZE;
+
+		gl.glGenTextures(1, textureId, 0);
+		tile.textureId = textureId[0];
+
+		gl.glBindTexture(GL10.GL_TEXTURE_2D, tile.textureId);
+		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MIN_FILTER, GL10.GL_LINEAR);
+		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_MAG_FILTER, GL10.GL_LINEAR);
+		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_S, GL10.GL_CLAMP_TO_EDGE);
+		gl.glTexParameterf(GL10.GL_TEXTURE_2D, GL10.GL_TEXTURE_WRAP_T, GL10.GL_CLAMP_TO_EDGE);
+
+		if (tile.width == size && tile.height == size) {
+			gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA, size, size, 0,
+					GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, tile.pixels);
+		} else {
+			// Tiles at the border of a face are placed in the lower left corner.
+			gl.glTexImage2D(GL10.GL_TEXTURE_2D, 0, GL10.GL_RGBA, size, size, 0,
+					GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, null);
+			gl.glTexSubImage2D(GL10.GL_TEXTURE_2D, 0, 0, 0, tile.width, tile.height,
+					GL10.GL_RGBA, GL10.GL_UNSIGNED_BYTE, tile.pixels);
+		}
+
+		synchronized (this) {
+			loader.releaseBuffer(tile.pixels);
+			tile.pixels = null;
+			residentBytes += TILE_BYTES;
+		}
+	}
+
+	// Deletes the textures of the least recently drawn tiles until the resident
+	// tiles fit into the GPU budget. Tiles of the current frame are kept. 
+	// Otherwise, they would be loaded and uploaded again with the next frame.
+	private synchronized void evict(GL10 gl) {
+		for (Iterator<Tile> it = tiles.values().iterator(); it.hasNext() && residentBytes > GPU_BUDGET; ) {
+			Tile tile = it.next();
+			if (tile.textureId == 0 || tile.lastDrawnFrame == frameNo) {
+				continue;
+			}
+
+			textureId[0] = tile.textureId;
+			gl.glDeleteTextures(1, textureId, 0);
+			tile.textureId = 0;
+			residentBytes -= TILE_BYTES;
+			it.remove();
+		}
+	}
+
+	// Deletes all tiles of levels other than the given one (-1 for all tiles), e.g., 
+	// after the view has been zoomed out. Tiles of other levels waiting to be loaded 
+	// are not loaded anymore.
+	public synchronized void dropOtherLevels(GL10 gl, int level) {
+		loader.clearQueue();
+
+		for (Iterator<Tile> it = tiles.values().iterator(); it.hasNext(); ) {
+			Tile tile = it.next();
+			if (tile.level == level) {
+				continue;
+			}
+
+			if (tile.textureId != 0) {
+				textureId[0] = tile.textureId;
+				gl.glDeleteTextures(1, textureId, 0);
+				residentBytes -= TILE_BYTES;
+			}
+			if (tile.pixels != null) {
+				loader.releaseBuffer(tile.pixels);
+			}
+			it.remove();
+		}
+	}
+
+	// Returns true if loaded tiles are waiting for upload, i.e., another frame is needed.
+	public boolean isUploadDeferred() {
+		return isUploadDeferred;
+	}
+	
+	public synchronized int getResidentBytes() {
+		return residentBytes;
+	}
+
+	private void setupTileGeometry(Tile tile) {
+		int faceNo = tile.face.ordinal();
+		float[] stripTexCoords = faceTexCoords[faceNo];
+		float levelSize = pyramid.getLevelSize(tile.level);
+		float[] vertices = new float[4*3];
+		float[] texCoords = new float[4*2];
+
+		float sScale = getTexCoordScale(tile.width);
+		float tScale = getTexCoordScale(tile.height);
+
+		for (int k = 0; k < 4; k++) {
+			// The corners of the tile are in the same order as the corners of the face.
+			float s = stripTexCoords[2*k];
+			float t = stripTexCoords[2*k+1];
+			float x = tile.tx*TilePyramid.TILE_SIZE + s*tile.width;
+			float y = tile.ty*TilePyramid.TILE_SIZE + t*tile.height;
+
+			float[] p = getFacePoint(faceNo, x/levelSize, y/levelSize);
+			vertices[3*k] = p[0];
+			vertices[3*k+1] = p[1];
+			vertices[3*k+2] = p[2];
+
+			texCoords[2*k] = s*sScale;
+			texCoords[2*k+1] = t*tScale;
+		}
+
+		tile.vertices = toFloatBuffer(vertices);
+		tile.texCoords = toFloatBuffer(texCoords);
+	}
+
+	private static float getTexCoordScale(int tileSize) {
+		if (tileSize == TilePyramid.TILE_SIZE) {
+			return 1.0f;
+		}
+
+		// Texture coordinate 1 addresses the center of the last texel of the tile.
+		// Otherwise, linear filtering would mix in the padding.
+		return (tileSize-0.5f)/TilePyramid.TILE_SIZE;
+	}
+
+	// Returns the bounding cones of the tiles of the given level (see tileBounds), 
+	// or null if the geometry of the faces has not been set yet.
+	private float[] getTileBounds(int level) {
+		if (tileBounds[level] != null) {
+			return tileBounds[level];
+		}
+		
+		for (int faceNo = 0; faceNo < FACE_CNT; faceNo++) {
+			if (faceVertices[faceNo] == null) {
+				return null;
+			}
+		}
+		
+		int tileCnt = pyramid.getTileCount(level);
+		float[] bounds = new float[BOUNDS_SIZE*FACE_CNT*tileCnt*tileCnt];
+		for (int faceNo = 0; faceNo < FACE_CNT; faceNo++) {
+			for (int ty = 0; ty < tileCnt; ty++) {
+				for (int tx = 0; tx < tileCnt; tx++) {
+					float[] center = getTileDirection(faceNo, level, tx+0.5f, ty+0.5f);
+					float[] corner = getTileDirection(faceNo, level, tx, ty);
+					double tileAngle = Math.acos(Math.min(1.0f, dot(center, corner)));
+					
+					int i = BOUNDS_SIZE*((faceNo*tileCnt + ty)*tileCnt + tx);
+					bounds[i] = center[0];
+					bounds[i+1] = center[1];
+					bounds[i+2] = center[2];
+					bounds[i+3] = (float) tileAngle;
+					bounds[i+4] = (float) Math.cos(tileAngle);
+					bounds[i+5] = (float) Math.sin(tileAngle);
+				}
+			}
+		}
+		
+		tileBounds[level] = bounds;
+		return bounds;
+	}
+	
+	// Returns the normalized direction to the given point of a tile (in tile units).
+	private float[] getTileDirection(int faceNo, int level, float tx, float ty) {
+		float levelSize = pyramid.getLevelSize(level);
+		float s = Math.min(1.0f, tx*TilePyramid.TILE_SIZE/levelSize);
+		float t = Math.min(1.0f, ty*TilePyramid.TILE_SIZE/levelSize);
+
+		float[] p = getFacePoint(faceNo, s, t);
+		float length = (float) Math.sqrt(dot(p, p));
+		p[0] /= length;
+		p[1] /= length;
+		p[2] /= length;
+
+		return p;
+	}
+
+	// Returns the point of a face at the given texture coordinates. Faces are
+	// planar squares, so the point is interpolated bilinearly from the corners.
+	private float[] getFacePoint(int faceNo, float s, float t) {
+		float[] vertices = faceVertices[faceNo];
+		float[] texCoords = faceTexCoords[faceNo];
+		float[] p = new float[3];
+
+		for (int k = 0; k < 4; k++) {
+			float ws = texCoords[2*k] > 0.5f ? s : 1.0f-s;
+			float wt = texCoords[2*k+1] > 0.5f ? t : 1.0f-t;
+			p[0] += ws*wt*vertices[3*k];
+			p[1] += ws*wt*vertices[3*k+1];
+			p[2] += ws*wt*vertices[3*k+2];
+		}
+
+		return p;
+	}
+
+	private static float dot(float[] a, float[] b) {
+		return a[0]*b[0] + a[1]*b[1] + a[2]*b[2];
+	}
+
+	private static FloatBuffer toFloatBuffer(float[] values) {
+		ByteBuffer byteBuffer = ByteBuffer.allocateDirect(values.length*Float.SIZE/8);
+		byteBuffer.order(ByteOrder.nativeOrder());
+		FloatBuffer buffer = byteBuffer.asFloatBuffer();
+		buffer.put(values);
+		buffer.position(0);
+
+		return buffer;
+	}
+
+	// Stops the loader thread. The manager must not be used anymore afterwards.
+	public void terminate() {
+		loader.terminate();
+	}
+}
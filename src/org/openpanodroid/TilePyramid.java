@@ -0,0 +1,220 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import junit.framework.Assert;
+
+import org.openpanodroid.panoutils.android.CubicPanoNative.TextureFaces;
+
+import android.graphics.Bitmap;
+
+// Faces of a panorama at resolutions above the resolution of the face store, 
+// split into square tiles. Each level doubles the face size of the level 
+// below (the base level is the face store), up to the resolution the 
+// panorama image provides. Tiles are stored in a directory as raw RGBA 
+// pixels (like the face store), one file per tile. Tiles at the right and 
+// bottom border of a face may be smaller than TILE_SIZE.
+//
+// Tiles are written by the converter and read by the TileManager of the 
+// renderer.
+public class TilePyramid {
+	public static final int TILE_SIZE = 256;
+	
+	private static final int BYTES_PER_PIXEL = 4;
+	private static final String DIR_PREFIX = "tiles";
+	
+	private File dir;
+	// Face size of each level (in pixels).
+	private int[] levelSizes;
+	
+	// Returns the face sizes of the levels above the given base face size, up to 
+	// the given maximum face size. Returns an empty array if the base face size 
+	// already provides all details.
+	public static int[] getLevelSizes(int baseFaceSize, int maxFaceSize) {
+		int levelCnt = 0;
+		for (int size = baseFaceSize; size < maxFaceSize; size *= 2) {
+			levelCnt++;
+		}
+		
+		int[] levelSizes = new int[levelCnt];
+		int size = baseFaceSize;
+		for (int level = 0; level < levelCnt; level++) {
+			size = Math.min(2*size, TextureSizePlanner.align(maxFaceSize));
+			levelSizes[level] = size;
+		}
+		
+		return levelSizes;
+	}
+	
+	// Directory for the tiles of the given face store.
+	public static File getDir(FaceStore faceStore) {
+		Assert.assertTrue(faceStore.getFile() != null);
+		File storeFile = faceStore.getFile();
+		return new File(storeFile.getParentFile(), DIR_PREFIX + "-" + storeFile.getName());
+	}
+	
+	// Deletes the tile directories in the given directory that do not belong to
+	// any of the given pyramids.
+	public static void deleteUnused(File parentDir, Collection<TilePyramid> inUse) {
+		File[] files = parentDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		
+		for (File f : files) {
+			if (f.isDirectory() && f.getName().startsWith(DIR_PREFIX) && !isUsed(f, inUse)) {
+				deleteDir(f);
+			}
+		}
+	}
+	
+	private static boolean isUsed(File dir, Collection<TilePyramid> inUse) {
+		for (TilePyramid pyramid : inUse) {
+			if (dir.equals(pyramid.getDir())) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	private static void deleteDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		dir.delete();
+	}
+	
+	public TilePyramid(File dir, int[] levelSizes) {
+		this.dir = dir;
+		this.levelSizes = levelSizes;
+	}
+	
+	public File getDir() {
+		return dir;
+	}
+	
+	public int getLevelCount() {
+		return levelSizes.length;
+	}
+	
+	public int getLevelSize(int level) {
+		return levelSizes[level];
+	}
+	
+	// Number of tiles per row (and column) of a face.
+	public int getTileCount(int level) {
+		return (levelSizes[level] + TILE_SIZE - 1)/TILE_SIZE;
+	}
+	
+	// Width of the tiles in the given column (or height of the tiles in the given row).
+	public int getTileSize(int level, int tileNo) {
+		return Math.min(TILE_SIZE, levelSizes[level] - tileNo*TILE_SIZE);
+	}
+	
+	private File getTileFile(TextureFaces face, int level, int tx, int ty) {
+		return new File(dir, level + "-" + face.ordinal() + "-" + tx + "-" + ty);
+	}
+	
+	// Writes all tiles of a face. faceBmp holds the face at the size of the given 
+	// level. buffer must hold at least one tile.
+	public void writeTiles(TextureFaces face, int level, Bitmap faceBmp, int[] pixels, byte[] buffer) throws IOException {
+		Assert.assertTrue(faceBmp.getWidth() == levelSizes[level]);
+		Assert.assertTrue(pixels.length >= TILE_SIZE*TILE_SIZE);
+		Assert.assertTrue(buffer.length >= TILE_SIZE*TILE_SIZE*BYTES_PER_PIXEL);
+		
+		dir.mkdirs();
+		
+		int tileCnt = getTileCount(level);
+		for (int ty = 0; ty < tileCnt; ty++) {
+			for (int tx = 0; tx < tileCnt; tx++) {
+				int width = getTileSize(level, tx);
+				int height = getTileSize(level, ty);
+				faceBmp.getPixels(pixels, 0, width, tx*TILE_SIZE, ty*TILE_SIZE, width, height);
+				
+				// ARGB (Java int) to RGBA bytes. Panoramas are opaque, so it does not
+				// matter that getPixels() does not premultiply alpha.
+				int byteCnt = 0;
+				for (int i = 0; i < width*height; i++) {
+					int argb = pixels[i];
+					buffer[byteCnt++] = (byte) (argb >> 16);
+					buffer[byteCnt++] = (byte) (argb >> 8);
+					buffer[byteCnt++] = (byte) argb;
+					buffer[byteCnt++] = (byte) (argb >> 24);
+				}
+				
+				FileOutputStream os = new FileOutputStream(getTileFile(face, level, tx, ty));
+				try {
+					os.write(buffer, 0, byteCnt);
+				} finally {
+					os.close();
+				}
+			}
+		}
+	}
+	
+	// Reads a tile into the given buffer (starting at position 0). Returns false 
+	// if the tile does not exist.
+	public boolean readTile(TextureFaces face, int level, int tx, int ty, ByteBuffer dst) {
+		int byteCnt = getTileSize(level, tx)*getTileSize(level, ty)*BYTES_PER_PIXEL;
+		Assert.assertTrue(dst.capacity() >= byteCnt);
+		
+		File file = getTileFile(face, level, tx, ty);
+		if (!file.exists() || file.length() != byteCnt) {
+			return false;
+		}
+		
+		dst.clear();
+		dst.limit(byteCnt);
+		
+		try {
+			FileInputStream is = new FileInputStream(file);
+			try {
+				while (dst.hasRemaining()) {
+					if (is.getChannel().read(dst) < 0) {
+						return false;
+					}
+				}
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		
+		dst.flip();
+		
+		return true;
+	}
+	
+	public void delete() {
+		deleteDir(dir);
+	}
+}
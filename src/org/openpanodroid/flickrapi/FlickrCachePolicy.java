@@ -0,0 +1,110 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.flickrapi;
+
+import java.net.URL;
+import java.util.Arrays;
+
+import org.openpanodroid.rest.CachePolicy;
+
+// Cache policy for Flickr API responses. Responses are cached by their request 
+// URL without the API key (and with sorted parameters), so changing the key
+// does not invalidate the cache.
+public class FlickrCachePolicy implements CachePolicy {
+	private static final long MINUTE = 60*1000; // [ms]
+	private static final long HOUR = 60*MINUTE;
+	private static final long DAY = 24*HOUR;
+	
+	// New photos are uploaded all the time; search results get outdated quickly.
+	private static final long SEARCH_TTL = 10*MINUTE;
+	private static final long SEARCH_MAX_STALE = DAY;
+	
+	// Photo information and sizes hardly ever change.
+	private static final long PHOTO_INFO_TTL = DAY;
+	private static final long PHOTO_INFO_MAX_STALE = 7*DAY;
+	
+	private static final String METHOD_SEARCH = "flickr.photos.search";
+	private static final String METHOD_GET_INFO = "flickr.photos.getInfo";
+	private static final String METHOD_GET_SIZES = "flickr.photos.getSizes";
+	
+	public static final FlickrCachePolicy INSTANCE = new FlickrCachePolicy();
+	
+	private FlickrCachePolicy() {
+	}
+	
+	public String getCacheKey(URL url) {
+		String method = getMethod(url);
+		if (method == null || !(method.equals(METHOD_SEARCH) || method.equals(METHOD_GET_INFO) || method.equals(METHOD_GET_SIZES))) {
+			return null;
+		}
+		
+		String[] params = url.getQuery().split("&");
+		Arrays.sort(params);
+		
+		StringBuilder key = new StringBuilder();
+		key.append(url.getHost()).append(url.getPath()).append('?');
+		
+		boolean first = true;
+		for (String param : params) {
+			if (param.length() == 0 || param.startsWith("api_key=")) {
+				continue;
+			}
+			
+			if (!first) {
+				key.append('&');
+			}
+			key.append(param);
+			first = false;
+		}
+		
+		return key.toString();
+	}
+	
+	public long getTimeToLive(URL url) {
+		if (METHOD_SEARCH.equals(getMethod(url))) {
+			return SEARCH_TTL;
+		} else {
+			return PHOTO_INFO_TTL;
+		}
+	}
+	
+	public long getMaxStale(URL url) {
+		if (METHOD_SEARCH.equals(getMethod(url))) {
+			return SEARCH_MAX_STALE;
+		} else {
+			return PHOTO_INFO_MAX_STALE;
+		}
+	}
+	
+	private static String getMethod(URL url) {
+		String query = url.getQuery();
+		if (query == null) {
+			return null;
+		}
+		
+		for (String param : query.split("&")) {
+			if (param.startsWith("method=")) {
+				return param.substring("method=".length());
+			}
+		}
+		
+		return null;
+	}
+}
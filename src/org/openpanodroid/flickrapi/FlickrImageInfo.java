@@ -60,21 +60,51 @@ public class FlickrImageInfo implements Parcelable {
 	public FlickrImageInfo() {
     }
 
-	private String getUrlBaseStr() {
-		// URL follow the scheme:
-		// http://farm{farm-id}.static.flickr.com/{server-id}/{id}_{secret}_[mstzb].jpg
+	// Index of the image URL variants in the URL cache.
+	private static final int URL_100 = 0;
+	private static final int URL_75X75 = 1;
+	private static final int URL_240 = 2;
+	private static final int URL_500 = 3;
+	private static final int URL_640 = 4;
+	private static final int URL_1024 = 5;
+	private static final int URL_ORIGINAL = 6;
+	
+	// Size suffixes of the variants URL_100 to URL_1024.
+	private static final String[] URL_SUFFIXES = {"_t", "_s", "_m", "", "_z", "_b"};
+	
+	// URLs are built on first use. Must be cleared with invalidateURLs() 
+	// whenever a field used for building the URLs is modified.
+	private URL[] urls = null;
+	
+	private URL getURL(int variant) {
+		if (urls == null) {
+			urls = new URL[URL_ORIGINAL+1];
+		}
 		
-		String urlStr = "http://farm" + farm + "." + FlickrConstants.IMAGE_HOST + "/" +
-			server + "/" + id + "_" + secret;
+		URL url = urls[variant];
+		if (url == null) {
+			url = buildURL(variant);
+			urls[variant] = url;
+		}
 		
-		return urlStr;
+		return url;
 	}
 	
-	// 100px longest side
-	public URL getImage100URL() {
-		// URL follow the scheme:
-		// http://farm{farm-id}.static.flickr.com/{server-id}/{id}_{secret}_[mstzb].jpg
-		String urlStr = getUrlBaseStr() + "_t.jpg";
+	private URL buildURL(int variant) {
+		String urlStr;
+		
+		if (variant == URL_ORIGINAL) {
+			// URL follow the scheme:
+			// http://farm{farm-id}.static.flickr.com/{server-id}/{id}_{o-secret}_o.(jpg|gif|png)
+			urlStr = "http://farm" + farm + "." + FlickrConstants.IMAGE_HOST + "/" +
+				server + "/" + id + "_" + originalSecret + "_o." + originalFormat;
+		} else {
+			// URL follow the scheme:
+			// http://farm{farm-id}.static.flickr.com/{server-id}/{id}_{secret}_[mstzb].jpg
+			urlStr = "http://farm" + farm + "." + FlickrConstants.IMAGE_HOST + "/" +
+				server + "/" + id + "_" + secret + URL_SUFFIXES[variant] + ".jpg";
+		}
+		
 		try {
 			URL url = new URL(urlStr);
 			return url;
@@ -85,77 +115,44 @@ public class FlickrImageInfo implements Parcelable {
 		}
 	}
 	
+	public void invalidateURLs() {
+		urls = null;
+	}
+	
+	// Removes all information about the original image.
+	public void clearOriginal() {
+		originalSecret = null;
+		originalFormat = null;
+		originalSize = null;
+		invalidateURLs();
+	}
+	
+	// 100px longest side
+	public URL getImage100URL() {
+		return getURL(URL_100);
+	}
+	
 	// 75px x 75px
 	public URL getImage75x75URL() {
-		// URL follow the scheme:
-		// http://farm{farm-id}.static.flickr.com/{server-id}/{id}_{secret}_[mstzb].jpg
-		String urlStr = getUrlBaseStr() + "_s.jpg";
-		try {
-			URL url = new URL(urlStr);
-			return url;
-		} catch (MalformedURLException e) {
-			Assert.fail();
-			Log.e(LOG_TAG, "Invalid URL");
-			return null;
-		}
+		return getURL(URL_75X75);
 	}
 	
 	// 240px longest side
 	public URL getImage240() {
-		// URL follow the scheme:
-		// http://farm{farm-id}.static.flickr.com/{server-id}/{id}_{secret}_[mstzb].jpg
-		String urlStr = getUrlBaseStr() + "_m.jpg";
-		try {
-			URL url = new URL(urlStr);
-			return url;
-		} catch (MalformedURLException e) {
-			Assert.fail();
-			Log.e(LOG_TAG, "Invalid URL");
-			return null;
-		}
+		return getURL(URL_240);
 	}
 	
 	// 500px longest side
 	public URL getImage500URL() {
-		// URL follow the scheme:
-		// http://farm{farm-id}.static.flickr.com/{server-id}/{id}_{secret}_[mstzb].jpg
-		String urlStr = getUrlBaseStr() + ".jpg";
-		try {
-			URL url = new URL(urlStr);
-			return url;
-		} catch (MalformedURLException e) {
-			Assert.fail();
-			Log.e(LOG_TAG, "Invalid URL");
-			return null;
-		}
+		return getURL(URL_500);
 	}
 	
 	public URL getImage640URL() {
-		// URL follow the scheme:
-		// http://farm{farm-id}.static.flickr.com/{server-id}/{id}_{secret}_[mstzb].jpg
-		String urlStr = getUrlBaseStr() + "_z.jpg";
-		try {
-			URL url = new URL(urlStr);
-			return url;
-		} catch (MalformedURLException e) {
-			Assert.fail();
-			Log.e(LOG_TAG, "Invalid URL");
-			return null;
-		}
+		return getURL(URL_640);
 	}
 	
 	public URL getImage1024URL() {
-		// URL follow the scheme:
-		// http://farm{farm-id}.static.flickr.com/{server-id}/{id}_{secret}_[mstzb].jpg
-		String urlStr = getUrlBaseStr() + "_b.jpg";
-		try {
-			URL url = new URL(urlStr);
-			return url;
-		} catch (MalformedURLException e) {
-			Assert.fail();
-			Log.e(LOG_TAG, "Invalid URL");
-			return null;
-		}
+		return getURL(URL_1024);
 	}
 	
 	public URL getOriginalURL() {
@@ -163,20 +160,7 @@ public class FlickrImageInfo implements Parcelable {
 			return null;
 		}
 		
-		// URL follow the scheme:
-		// http://farm{farm-id}.static.flickr.com/{server-id}/{id}_{o-secret}_o.(jpg|gif|png)
-		
-		String urlStr = "http://farm" + farm + "." + FlickrConstants.IMAGE_HOST + "/" +
-		server + "/" + id + "_" + originalSecret + "_o." + originalFormat;
-		
-		try {
-			URL url = new URL(urlStr);
-			return url;
-		} catch (MalformedURLException e) {
-			Assert.fail();
-			Log.e(LOG_TAG, "Invalid URL");
-			return null;
-		}
+		return getURL(URL_ORIGINAL);
 	}
 	
 	public FlickrImageInfo(Parcel parcel) {
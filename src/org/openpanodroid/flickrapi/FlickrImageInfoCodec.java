@@ -0,0 +1,257 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.flickrapi;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compact binary encoding of lists of FlickrImageInfo objects, e.g., for 
+// saving the instance state of an activity or for storing search results.
+//
+// Format (all integers are unsigned varints, 7 bits per byte, least 
+// significant group first):
+//
+//   version, image count, images
+//
+// Each image consists of its string fields (id, secret, original secret, 
+// server, farm, title, owner real name, owner user name, owner NSID, 
+// original format) and its sizes (thumbnail, large, original). 
+//
+// A string is written as a reference: 0 for null, 1 for a new string 
+// (followed by its length and its characters), and n+2 for the n-th new 
+// string of the list. Since farm, server and owner values repeat a lot within 
+// a result list, most of them take a single byte, and decoded images share the 
+// same String objects.
+//
+// A size is written as width+1 and height, or as 0 for a missing size.
+public class FlickrImageInfoCodec {
+	private static final int VERSION = 1;
+	
+	private static final int STRING_NULL = 0;
+	private static final int STRING_NEW = 1;
+	private static final int STRING_REF = 2;
+	
+	private static class Encoder {
+		private byte[] buffer;
+		private int length = 0;
+		private Map<String, Integer> strings = new HashMap<String, Integer>();
+		
+		public Encoder(int capacity) {
+			buffer = new byte[capacity];
+		}
+		
+		public void writeVarint(int value) {
+			ensureCapacity(5);
+			
+			while ((value & ~0x7f) != 0) {
+				buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			buffer[length++] = (byte) value;
+		}
+		
+		public void writeString(String str) {
+			if (str == null) {
+				writeVarint(STRING_NULL);
+				return;
+			}
+			
+			Integer index = strings.get(str);
+			if (index != null) {
+				writeVarint(STRING_REF + index);
+				return;
+			}
+			
+			strings.put(str, strings.size());
+			
+			int len = str.length();
+			writeVarint(STRING_NEW);
+			writeVarint(len);
+			for (int i = 0; i < len; i++) {
+				writeVarint(str.charAt(i));
+			}
+		}
+		
+		public void writeSize(ImageSize size) {
+			if (size == null) {
+				writeVarint(0);
+			} else {
+				writeVarint(size.width + 1);
+				writeVarint(size.height);
+			}
+		}
+		
+		public byte[] toByteArray() {
+			byte[] result = new byte[length];
+			System.arraycopy(buffer, 0, result, 0, length);
+			return result;
+		}
+		
+		private void ensureCapacity(int additionalBytes) {
+			if (length + additionalBytes <= buffer.length) {
+				return;
+			}
+			
+			byte[] newBuffer = new byte[Math.max(2*buffer.length, length + additionalBytes)];
+			System.arraycopy(buffer, 0, newBuffer, 0, length);
+			buffer = newBuffer;
+		}
+	}
+	
+	private static class Decoder {
+		private byte[] data;
+		private int pos = 0;
+		private List<String> strings = new ArrayList<String>();
+		private char[] chars = new char[64];
+		
+		public Decoder(byte[] data) {
+			this.data = data;
+		}
+		
+		public int readVarint() throws IOException {
+			int value = 0;
+			
+			for (int shift = 0; shift < 32; shift += 7) {
+				if (pos >= data.length) {
+					throw new IOException("Unexpected end of data");
+				}
+				
+				int b = data[pos++];
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			
+			throw new IOException("Malformed varint");
+		}
+		
+		public String readString() throws IOException {
+			int ref = readVarint();
+			
+			if (ref == STRING_NULL) {
+				return null;
+			}
+			
+			if (ref >= STRING_REF) {
+				int index = ref - STRING_REF;
+				if (index >= strings.size()) {
+					throw new IOException("Invalid string reference");
+				}
+				return strings.get(index);
+			}
+			
+			int len = readVarint();
+			if (len < 0 || len > data.length - pos) {
+				throw new IOException("Invalid string length");
+			}
+			
+			if (chars.length < len) {
+				chars = new char[len];
+			}
+			for (int i = 0; i < len; i++) {
+				chars[i] = (char) readVarint();
+			}
+			
+			String str = new String(chars, 0, len);
+			strings.add(str);
+			
+			return str;
+		}
+		
+		public ImageSize readSize() throws IOException {
+			int width = readVarint();
+			if (width == 0) {
+				return null;
+			}
+			
+			int height = readVarint();
+			
+			return new ImageSize(width - 1, height);
+		}
+	}
+	
+	public static byte[] encode(List<FlickrImageInfo> imageInfos) {
+		// Roughly the size of an image without repeated strings.
+		Encoder encoder = new Encoder(64 + 96*imageInfos.size());
+		
+		encoder.writeVarint(VERSION);
+		encoder.writeVarint(imageInfos.size());
+		
+		for (FlickrImageInfo imageInfo : imageInfos) {
+			encoder.writeString(imageInfo.id);
+			encoder.writeString(imageInfo.secret);
+			encoder.writeString(imageInfo.originalSecret);
+			encoder.writeString(imageInfo.server);
+			encoder.writeString(imageInfo.farm);
+			encoder.writeString(imageInfo.title);
+			encoder.writeString(imageInfo.ownerRealName);
+			encoder.writeString(imageInfo.ownerUserName);
+			encoder.writeString(imageInfo.ownerNsid);
+			encoder.writeString(imageInfo.originalFormat);
+			encoder.writeSize(imageInfo.thumbnailSize);
+			encoder.writeSize(imageInfo.largeSize);
+			encoder.writeSize(imageInfo.originalSize);
+		}
+		
+		return encoder.toByteArray();
+	}
+	
+	// Throws an IOException if the data is malformed or has been written by 
+	// a different version of the codec.
+	public static ArrayList<FlickrImageInfo> decode(byte[] data) throws IOException {
+		Decoder decoder = new Decoder(data);
+		
+		int version = decoder.readVarint();
+		if (version != VERSION) {
+			throw new IOException("Unsupported version " + version);
+		}
+		
+		int cnt = decoder.readVarint();
+		if (cnt < 0 || cnt > data.length) {
+			throw new IOException("Invalid image count");
+		}
+		
+		ArrayList<FlickrImageInfo> imageInfos = new ArrayList<FlickrImageInfo>(cnt);
+		
+		for (int i = 0; i < cnt; i++) {
+			FlickrImageInfo imageInfo = new FlickrImageInfo();
+			imageInfo.id = decoder.readString();
+			imageInfo.secret = decoder.readString();
+			imageInfo.originalSecret = decoder.readString();
+			imageInfo.server = decoder.readString();
+			imageInfo.farm = decoder.readString();
+			imageInfo.title = decoder.readString();
+			imageInfo.ownerRealName = decoder.readString();
+			imageInfo.ownerUserName = decoder.readString();
+			imageInfo.ownerNsid = decoder.readString();
+			imageInfo.originalFormat = decoder.readString();
+			imageInfo.thumbnailSize = decoder.readSize();
+			imageInfo.largeSize = decoder.readSize();
+			imageInfo.originalSize = decoder.readSize();
+			imageInfos.add(imageInfo);
+		}
+		
+		return imageInfos;
+	}
+}
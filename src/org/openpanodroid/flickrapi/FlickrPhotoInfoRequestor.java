@@ -19,62 +19,75 @@
 
 package org.openpanodroid.flickrapi;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 
 import junit.framework.Assert;
 
+import org.openpanodroid.ioutils.XmlTokenizer;
+import org.openpanodroid.rest.CachePolicy;
 import org.openpanodroid.rest.RESTQuery;
 import org.openpanodroid.rest.RESTRequestorXML;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
 
 
 public class FlickrPhotoInfoRequestor extends RESTRequestorXML {
 	private FlickrImageInfo result;
 	
-	class MySAXHandler extends DefaultHandler {
-		private boolean insideTitle = false;
-		
-		public void startElement(String uri, String localName, String qName, org.xml.sax.Attributes attributes) {
-			if (localName.equals("rsp")) {
-				String state = attributes.getValue("stat");
-				
-				if (state == null || !state.equals("ok")) {
-					setSuccessState(false);
-				} else {
-					result = new FlickrImageInfo();
-					setResult(result);
-					setSuccessState(true);
+	@Override
+	protected void parseResponse(InputStream is, int contentLength) {
+		// The requestor is re-used, so do not fill in the result of the last response.
+		result = null;
+		super.parseResponse(is, contentLength);
+	}
+	
+	@Override
+	protected void handleStartTag(XmlTokenizer xml) throws IOException {
+		if (isTag(xml, "rsp")) {
+			if (!isResponseOK(xml)) {
+				setSuccessState(false);
+			} else {
+				result = new FlickrImageInfo();
+				setResult(result);
+				setSuccessState(true);
+			}
+		} else if (result == null) {
+			return;
+		} else if (isTag(xml, "owner")) {
+			int attributeCnt = xml.getAttributeCount();
+			for (int i = 0; i < attributeCnt; i++) {
+				if (xml.attributeNameEquals(i, "realname")) {
+					result.ownerRealName = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "username")) {
+					result.ownerUserName = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "nsid")) {
+					result.ownerNsid = xml.getAttributeValue(i);
 				}
-			} else if (localName.equals("owner")) {
-				result.ownerRealName = attributes.getValue("realname");
-				result.ownerUserName = attributes.getValue("username");
-				result.ownerNsid = attributes.getValue("nsid");
-			} else if (localName.equals("photo")) {
-				result.id = attributes.getValue("id");
-				result.server = attributes.getValue("server");
-				result.farm = attributes.getValue("farm");
-				result.secret = attributes.getValue("secret");
-			} else if (localName.equals("title")) {
-				insideTitle = true;
 			}
-		}
-		
-		@Override
-		public void characters(char[] ch, int start, int length)
-				throws SAXException {
-			if (insideTitle) {
-				insideTitle = false;
-				result.title = new String(ch, start, length);
+		} else if (isTag(xml, "photo")) {
+			int attributeCnt = xml.getAttributeCount();
+			for (int i = 0; i < attributeCnt; i++) {
+				if (xml.attributeNameEquals(i, "id")) {
+					result.id = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "server")) {
+					result.server = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "farm")) {
+					result.farm = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "secret")) {
+					result.secret = xml.getAttributeValue(i);
+				}
 			}
+		} else if (isTag(xml, "title")) {
+			result.title = xml.nextText();
 		}
 	}
 	
-	protected DefaultHandler createSAXHandler() {
-		return new MySAXHandler();
+	@Override
+	protected CachePolicy getCachePolicy() {
+		return FlickrCachePolicy.INSTANCE;
 	}
-
+	
 	@Override
 	protected URL buildRequestURL(RESTQuery queryData) {
 		Assert.assertTrue(queryData instanceof FlickrPhotoInfoQuery);
@@ -19,18 +19,26 @@
 
 package org.openpanodroid.flickrapi;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
 import junit.framework.Assert;
 
+import org.openpanodroid.ioutils.JsonTokenizer;
+import org.openpanodroid.ioutils.XmlTokenizer;
+import org.openpanodroid.rest.CachePolicy;
 import org.openpanodroid.rest.RESTQuery;
 import org.openpanodroid.rest.RESTRequestorXML;
-import org.xml.sax.helpers.DefaultHandler;
 
+import android.os.Debug;
+import android.os.SystemClock;
 import android.util.Log;
 
 
@@ -38,62 +46,274 @@ public class FlickrPhotoRequestor extends RESTRequestorXML {
 	private static final String LOG_TAG = FlickrPhotoRequestor.class.getSimpleName();
 	
 	public enum SortCriteria {interestingness, date};
+	
+	public enum ResponseFormat {xml, json};
+	
+	private static final int JSON_BUFFER_SIZE = 8*1024;
+	
+	// Number of photos sent to the client at once while the response is parsed.
+	private static final int PARTIAL_RESULT_SIZE = 10;
 
 	private List<FlickrImageInfo> result;
 	
-	class MySAXHandler extends DefaultHandler {
-		public void startElement(String uri, String localName, String qName, org.xml.sax.Attributes attributes) {
-			if (localName.equals("rsp")) {
-				String state = attributes.getValue("stat");
-				
-				if (state == null || !state.equals("ok")) {
-					setSuccessState(false);
+	private ResponseFormat responseFormat;
+	private JsonTokenizer jsonTokenizer = null;
+	private int publishedCnt;
+	
+	public FlickrPhotoRequestor() {
+		this(ResponseFormat.xml);
+	}
+	
+	public FlickrPhotoRequestor(ResponseFormat responseFormat) {
+		this.responseFormat = responseFormat;
+	}
+	
+	public ResponseFormat getResponseFormat() {
+		return responseFormat;
+	}
+	
+	@Override
+	protected void parseResponse(InputStream is, int contentLength) {
+		// The requestor is re-used, so do not add photos to the result of the 
+		// last response (e.g., if this response reports an error).
+		result = null;
+		publishedCnt = 0;
+		
+		long tStart = SystemClock.elapsedRealtime();
+		
+		if (responseFormat == ResponseFormat.json) {
+			parseJSONResponse(is);
+		} else {
+			super.parseResponse(is, contentLength);
+		}
+		
+		// For comparing the formats: bytes on the wire (compressed) and the time 
+		// for parsing, which includes reading the stream.
+		long parseTime = SystemClock.elapsedRealtime() - tStart;
+		int photoCnt = (result == null ? 0 : result.size());
+		Log.i(LOG_TAG, "Photo search response (" + responseFormat + "): " + photoCnt + " photos, " + 
+				getTransferredByteCount() + " bytes transferred, parsed in " + parseTime + " ms");
+	}
+	
+	private void parseJSONResponse(InputStream is) {
+		long tStart = SystemClock.elapsedRealtime();
+		if (COUNT_ALLOCATIONS) {
+			Debug.startAllocCounting();
+			Debug.resetThreadAllocCount();
+			Debug.resetThreadAllocSize();
+		}
+		
+		if (jsonTokenizer == null) {
+			jsonTokenizer = new JsonTokenizer(JSON_BUFFER_SIZE);
+		}
+		JsonTokenizer json = jsonTokenizer;
+		
+		List<FlickrImageInfo> photos = new LinkedList<FlickrImageInfo>();
+		boolean ok = false;
+		String message = null;
+		
+		try {
+			json.setInput(is);
+			
+			if (json.next() != JsonTokenizer.BEGIN_OBJECT) {
+				throw new IOException("Response is not a JSON object");
+			}
+			
+			while (json.next() == JsonTokenizer.NAME) {
+				if (json.valueEquals("photos")) {
+					if (json.next() == JsonTokenizer.BEGIN_OBJECT) {
+						parseJSONPhotos(json, photos);
+					} else {
+						json.skipValue();
+					}
+				} else if (json.valueEquals("stat")) {
+					ok = "ok".equals(json.nextString());
+				} else if (json.valueEquals("message")) {
+					message = json.nextString();
 				} else {
-					result = new LinkedList<FlickrImageInfo>();
-					setResult(result);
-					setSuccessState(true);
+					json.next();
+					json.skipValue();
+				}
+			}
+			
+			if (ok) {
+				result = photos;
+				setResult(result);
+				setSuccessState(true);
+			} else {
+				setErrorMsg(message);
+				setSuccessState(false);
+			}
+		} catch (IOException ex) {
+			setErrorMsg(ex.getLocalizedMessage());
+			setSuccessState(false);
+		} finally {
+			long parseTime = SystemClock.elapsedRealtime() - tStart;
+			if (COUNT_ALLOCATIONS) {
+				Debug.stopAllocCounting();
+				Log.i(LOG_TAG, "Parsed " + photos.size() + " photos (" + json.getByteCount() + 
+						" bytes decoded JSON) in " + parseTime + " ms; " + Debug.getThreadAllocCount() + 
+						" allocations, " + Debug.getThreadAllocSize() + " bytes");
+			} else {
+				Log.i(LOG_TAG, "Parsed " + photos.size() + " photos (" + json.getByteCount() + 
+						" bytes decoded JSON) in " + parseTime + " ms");
+			}
+			
+			json.setInput(null);
+		}
+	}
+	
+	// Parses the members of the "photos" object.
+	private void parseJSONPhotos(JsonTokenizer json, List<FlickrImageInfo> photos) throws IOException {
+		while (json.next() == JsonTokenizer.NAME) {
+			if (json.valueEquals("photo") && json.next() == JsonTokenizer.BEGIN_ARRAY) {
+				while (json.next() == JsonTokenizer.BEGIN_OBJECT) {
+					if (isCancelled()) {
+						throw new InterruptedIOException("Request cancelled");
+					}
+					photos.add(parseJSONPhoto(json));
+					publishNewPhotos(photos);
 				}
-			} else if (localName.equals("photo")) {
-				FlickrImageInfo imageInfo = new FlickrImageInfo();
-				imageInfo.id = attributes.getValue("id");
-				imageInfo.ownerUserName = attributes.getValue("ownername");
-				imageInfo.ownerNsid = attributes.getValue("owner");
-				imageInfo.farm = attributes.getValue("farm");
-				imageInfo.server = attributes.getValue("server");
-				imageInfo.secret = attributes.getValue("secret");
-				imageInfo.title = attributes.getValue("title");
-				
-				try {
-					String widthStr = attributes.getValue("width_l");
-					int width = Integer.parseInt(widthStr);
-					String heightStr = attributes.getValue("height_l");
-					int height = Integer.parseInt(heightStr);
-					imageInfo.largeSize = new ImageSize(width, height);
-				} catch (NumberFormatException ex) {
-					imageInfo.largeSize = null;
+			} else {
+				if (json.getToken() == JsonTokenizer.NAME) {
+					json.next();
 				}
-				
-				imageInfo.originalFormat = attributes.getValue("originalformat");
-				imageInfo.originalSecret = attributes.getValue("originalsecret");
-				try {
-					String widthStr = attributes.getValue("width_o");
-					int width = Integer.parseInt(widthStr);
-					String heightStr = attributes.getValue("height_o");
-					int height = Integer.parseInt(heightStr);
-					imageInfo.originalSize = new ImageSize(width, height);
-				} catch (NumberFormatException ex) {
-					imageInfo.originalSize = null;
+				json.skipValue();
+			}
+		}
+	}
+	
+	// Parses the members of a photo object. The opening brace has been read.
+	private FlickrImageInfo parseJSONPhoto(JsonTokenizer json) throws IOException {
+		FlickrImageInfo imageInfo = new FlickrImageInfo();
+		int largeWidth = -1, largeHeight = -1;
+		int originalWidth = -1, originalHeight = -1;
+		
+		while (json.next() == JsonTokenizer.NAME) {
+			if (json.valueEquals("id")) {
+				imageInfo.id = json.nextString();
+			} else if (json.valueEquals("ownername")) {
+				imageInfo.ownerUserName = json.nextString();
+			} else if (json.valueEquals("owner")) {
+				imageInfo.ownerNsid = json.nextString();
+			} else if (json.valueEquals("farm")) {
+				imageInfo.farm = json.nextString();
+			} else if (json.valueEquals("server")) {
+				imageInfo.server = json.nextString();
+			} else if (json.valueEquals("secret")) {
+				imageInfo.secret = json.nextString();
+			} else if (json.valueEquals("title")) {
+				imageInfo.title = json.nextString();
+			} else if (json.valueEquals("originalformat")) {
+				imageInfo.originalFormat = json.nextString();
+			} else if (json.valueEquals("originalsecret")) {
+				imageInfo.originalSecret = json.nextString();
+			} else if (json.valueEquals("width_l")) {
+				largeWidth = json.nextInt(-1);
+			} else if (json.valueEquals("height_l")) {
+				largeHeight = json.nextInt(-1);
+			} else if (json.valueEquals("width_o")) {
+				originalWidth = json.nextInt(-1);
+			} else if (json.valueEquals("height_o")) {
+				originalHeight = json.nextInt(-1);
+			} else {
+				json.next();
+				json.skipValue();
+			}
+		}
+		
+		if (largeWidth >= 0 && largeHeight >= 0) {
+			imageInfo.largeSize = new ImageSize(largeWidth, largeHeight);
+		}
+		
+		if (originalWidth >= 0 && originalHeight >= 0) {
+			imageInfo.originalSize = new ImageSize(originalWidth, originalHeight);
+		}
+		
+		return imageInfo;
+	}
+	
+	@Override
+	protected void handleStartTag(XmlTokenizer xml) {
+		if (isTag(xml, "rsp")) {
+			if (!isResponseOK(xml)) {
+				setSuccessState(false);
+			} else {
+				result = new LinkedList<FlickrImageInfo>();
+				setResult(result);
+				setSuccessState(true);
+			}
+		} else if (isTag(xml, "photo")) {
+			if (result == null) {
+				return;
+			}
+			
+			FlickrImageInfo imageInfo = new FlickrImageInfo();
+			int largeWidth = -1, largeHeight = -1;
+			int originalWidth = -1, originalHeight = -1;
+			
+			int attributeCnt = xml.getAttributeCount();
+			for (int i = 0; i < attributeCnt; i++) {
+				if (xml.attributeNameEquals(i, "id")) {
+					imageInfo.id = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "ownername")) {
+					imageInfo.ownerUserName = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "owner")) {
+					imageInfo.ownerNsid = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "farm")) {
+					imageInfo.farm = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "server")) {
+					imageInfo.server = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "secret")) {
+					imageInfo.secret = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "title")) {
+					imageInfo.title = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "originalformat")) {
+					imageInfo.originalFormat = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "originalsecret")) {
+					imageInfo.originalSecret = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "width_l")) {
+					largeWidth = xml.getAttributeInt(i, -1);
+				} else if (xml.attributeNameEquals(i, "height_l")) {
+					largeHeight = xml.getAttributeInt(i, -1);
+				} else if (xml.attributeNameEquals(i, "width_o")) {
+					originalWidth = xml.getAttributeInt(i, -1);
+				} else if (xml.attributeNameEquals(i, "height_o")) {
+					originalHeight = xml.getAttributeInt(i, -1);
 				}
-				
-				result.add(imageInfo);
 			}
+			
+			if (largeWidth >= 0 && largeHeight >= 0) {
+				imageInfo.largeSize = new ImageSize(largeWidth, largeHeight);
+			}
+			
+			if (originalWidth >= 0 && originalHeight >= 0) {
+				imageInfo.originalSize = new ImageSize(originalWidth, originalHeight);
+			}
+			
+			result.add(imageInfo);
+			publishNewPhotos(result);
 		}
 	}
-
-	protected DefaultHandler createSAXHandler() {
-		return new MySAXHandler();
+	
+	// Passes photos parsed so far to the client as soon as enough of them have 
+	// arrived. The remaining photos are delivered with the complete result.
+	private void publishNewPhotos(List<FlickrImageInfo> photos) {
+		int newCnt = photos.size() - publishedCnt;
+		if (newCnt < PARTIAL_RESULT_SIZE) {
+			return;
+		}
+		
+		List<FlickrImageInfo> newPhotos = new ArrayList<FlickrImageInfo>(photos.subList(publishedCnt, photos.size()));
+		publishPartialResult(newPhotos, publishedCnt);
+		publishedCnt = photos.size();
 	}
 
+	@Override
+	protected CachePolicy getCachePolicy() {
+		return FlickrCachePolicy.INSTANCE;
+	}
+	
 	@Override
 	protected URL buildRequestURL(RESTQuery queryData) {
 		Assert.assertTrue(queryData instanceof FlickrPhotoQuery);
@@ -102,6 +322,12 @@ public class FlickrPhotoRequestor extends RESTRequestorXML {
 		String urlStr = FlickrConstants.FLICKR_URL + "/?"; 
 		urlStr += "method=flickr.photos.search" + "&";
 		urlStr += "api_key=" + FlickrConstants.API_KEY_PANODROID + "&";
+		
+		if (responseFormat == ResponseFormat.json) {
+			urlStr += "format=json" + "&";
+			// Plain JSON instead of a JSONP function call.
+			urlStr += "nojsoncallback=1" + "&";
+		}
 
 		if (q.tags != null && q.tags.size() > 0) {
 			String tagStr = "";
@@ -19,79 +19,100 @@
 
 package org.openpanodroid.flickrapi;
 
+import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 
 import junit.framework.Assert;
 
+import org.openpanodroid.ioutils.XmlTokenizer;
+import org.openpanodroid.rest.CachePolicy;
 import org.openpanodroid.rest.RESTQuery;
 import org.openpanodroid.rest.RESTRequestorXML;
-import org.xml.sax.helpers.DefaultHandler;
 
 
 public class FlickrPhotoSizeRequestor extends RESTRequestorXML {
 
-	class MySAXHandler extends DefaultHandler {
-		public void startElement(String uri, String localName, String qName, org.xml.sax.Attributes attributes) {
-			if (localName.equals("rsp")) {
-				String state = attributes.getValue("stat");
-				
-				if (state == null || !state.equals("ok")) {
-					setSuccessState(false);
-				} else {
-					result = new FlickrImageSizes();
-					setResult(result);
-					setSuccessState(true);
-				}
-			} else if (localName.equals("size")) {
-				Assert.assertFalse(result == null);
-				
-				String sizeLabel = attributes.getValue("source");
-				String srcUrlStr = attributes.getValue("source");
-				URL srcUrl;
-				try {
-					srcUrl = new URL(srcUrlStr);
-				} catch (MalformedURLException e) {
-					return;
-				}
-				int width = Integer.parseInt(attributes.getValue("width"));
-				int height = Integer.parseInt(attributes.getValue("height"));
-				
-				if (sizeLabel.equalsIgnoreCase("square")) {
-					result.squareSize = new ImageSize(width, height);
-					result.squareURL = srcUrl;
-				} else if (sizeLabel.equalsIgnoreCase("thumbnail")) {
-					result.thumbnailSize = new ImageSize(width, height);
-					result.thumbnailURL = srcUrl;
-				} else if (sizeLabel.equalsIgnoreCase("small")) {
-					result.smallSize = new ImageSize(width, height);
-					result.smallURL = srcUrl;
-				} else if (sizeLabel.equalsIgnoreCase("medium")) {
-					result.mediumSize = new ImageSize(width, height);
-					result.mediumURL = srcUrl;
-				} else if (sizeLabel.equalsIgnoreCase("large")) {
-					result.largeSize = new ImageSize(width, height);
-					result.largeURL = srcUrl;
-				} else if (sizeLabel.equalsIgnoreCase("original")) {
-					result.originalSize = new ImageSize(width, height);
-					result.originalURL = srcUrl;
-				} else {
-					Assert.fail();
-				}
-			}
-		}
-	}
-	
 	private FlickrImageSizes result;
 	
 	public FlickrPhotoSizeRequestor() {
 	}
 
 	@Override
-	protected DefaultHandler createSAXHandler() {
-		return new MySAXHandler();
+	protected void parseResponse(InputStream is, int contentLength) {
+		// The requestor is re-used, so do not fill in the result of the last response.
+		result = null;
+		super.parseResponse(is, contentLength);
+	}
+	
+	@Override
+	protected void handleStartTag(XmlTokenizer xml) {
+		if (isTag(xml, "rsp")) {
+			if (!isResponseOK(xml)) {
+				setSuccessState(false);
+			} else {
+				result = new FlickrImageSizes();
+				setResult(result);
+				setSuccessState(true);
+			}
+		} else if (isTag(xml, "size")) {
+			Assert.assertFalse(result == null);
+			
+			String sizeLabel = null;
+			String srcUrlStr = null;
+			int width = -1, height = -1;
+			
+			int attributeCnt = xml.getAttributeCount();
+			for (int i = 0; i < attributeCnt; i++) {
+				if (xml.attributeNameEquals(i, "label")) {
+					sizeLabel = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "source")) {
+					srcUrlStr = xml.getAttributeValue(i);
+				} else if (xml.attributeNameEquals(i, "width")) {
+					width = xml.getAttributeInt(i, -1);
+				} else if (xml.attributeNameEquals(i, "height")) {
+					height = xml.getAttributeInt(i, -1);
+				}
+			}
+			
+			if (sizeLabel == null || srcUrlStr == null || width < 0 || height < 0) {
+				return;
+			}
+			
+			URL srcUrl;
+			try {
+				srcUrl = new URL(srcUrlStr);
+			} catch (MalformedURLException e) {
+				return;
+			}
+			
+			if (sizeLabel.equalsIgnoreCase("square")) {
+				result.squareSize = new ImageSize(width, height);
+				result.squareURL = srcUrl;
+			} else if (sizeLabel.equalsIgnoreCase("thumbnail")) {
+				result.thumbnailSize = new ImageSize(width, height);
+				result.thumbnailURL = srcUrl;
+			} else if (sizeLabel.equalsIgnoreCase("small")) {
+				result.smallSize = new ImageSize(width, height);
+				result.smallURL = srcUrl;
+			} else if (sizeLabel.equalsIgnoreCase("medium")) {
+				result.mediumSize = new ImageSize(width, height);
+				result.mediumURL = srcUrl;
+			} else if (sizeLabel.equalsIgnoreCase("large")) {
+				result.largeSize = new ImageSize(width, height);
+				result.largeURL = srcUrl;
+			} else if (sizeLabel.equalsIgnoreCase("original")) {
+				result.originalSize = new ImageSize(width, height);
+				result.originalURL = srcUrl;
+			}
+		}
 	}
 
+	@Override
+	protected CachePolicy getCachePolicy() {
+		return FlickrCachePolicy.INSTANCE;
+	}
+	
 	@Override
 	protected URL buildRequestURL(RESTQuery queryData) {
 		Assert.assertTrue(queryData instanceof FlickrPhotoSizeQuery);
@@ -0,0 +1,328 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.flickrapi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+// Persistent index of search results. For each search (identified by its tags, 
+// sort order and filter settings), the index stores the panoramas found so 
+// far in the order they were shown, together with the state of the search 
+// (last page fetched, filter statistics). A repeated search can be shown from 
+// the index immediately and continued where it stopped.
+//
+// All methods access the database and should not be called from the UI thread.
+public class FlickrSearchIndex extends SQLiteOpenHelper {
+	private static final String LOG_TAG = FlickrSearchIndex.class.getSimpleName();
+	
+	private static final String DATABASE_NAME = "searchindex.db";
+	private static final int DATABASE_VERSION = 1;
+	
+	// Searches not used for this time are dropped.
+	private static final long MAX_AGE = 14*24*60*60*1000L; // [ms]
+	private static final int MAX_SEARCHES = 20;
+	
+	private static final String TABLE_SEARCHES = "searches";
+	private static final String TABLE_IMAGES = "images";
+	
+	private static final String[] IMAGE_COLUMNS = {"photo_id", "secret", "original_secret", "server", "farm", 
+		"title", "owner_real_name", "owner_user_name", "owner_nsid", "large_width", "large_height", 
+		"original_width", "original_height", "original_format"};
+	
+	private static FlickrSearchIndex instance = null;
+	
+	public static class SearchState {
+		public int lastPage;
+		public int seenCnt;
+		public int passedCnt;
+		public List<FlickrImageInfo> images;
+	}
+	
+	public static synchronized FlickrSearchIndex getInstance(Context context) {
+		if (instance == null) {
+			instance = new FlickrSearchIndex(context.getApplicationContext());
+		}
+		
+		return instance;
+	}
+	
+	private FlickrSearchIndex(Context context) {
+		super(context, DATABASE_NAME, null, DATABASE_VERSION);
+	}
+	
+	// Builds the key of a search. Tags are sorted, so the same set of tags 
+	// always maps to the same search.
+	public static String getSearchKey(List<String> tags, String sortCriteria, boolean includeLowResImages) {
+		List<String> sortedTags = new ArrayList<String>(tags);
+		Collections.sort(sortedTags);
+		
+		StringBuilder key = new StringBuilder();
+		for (String tag : sortedTags) {
+			key.append(tag.toLowerCase()).append(',');
+		}
+		key.append('|').append(sortCriteria);
+		key.append('|').append(includeLowResImages ? "all" : "hq");
+		
+		return key.toString();
+	}
+	
+	@Override
+	public void onCreate(SQLiteDatabase db) {
+		db.execSQL("CREATE TABLE " + TABLE_SEARCHES + " (" +
+				"search_key TEXT PRIMARY KEY, " +
+				"last_page INTEGER, " +
+				"seen_cnt INTEGER, " +
+				"passed_cnt INTEGER, " +
+				"last_used INTEGER)");
+		
+		db.execSQL("CREATE TABLE " + TABLE_IMAGES + " (" +
+				"search_key TEXT, " +
+				"position INTEGER, " +
+				"photo_id TEXT, " +
+				"secret TEXT, " +
+				"original_secret TEXT, " +
+				"server TEXT, " +
+				"farm TEXT, " +
+				"title TEXT, " +
+				"owner_real_name TEXT, " +
+				"owner_user_name TEXT, " +
+				"owner_nsid TEXT, " +
+				"large_width INTEGER, " +
+				"large_height INTEGER, " +
+				"original_width INTEGER, " +
+				"original_height INTEGER, " +
+				"original_format TEXT, " +
+				"PRIMARY KEY (search_key, photo_id))");
+		
+		db.execSQL("CREATE INDEX images_position ON " + TABLE_IMAGES + " (search_key, position)");
+	}
+
+	@Override
+	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+		// The index is only a cache. Just start over.
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_SEARCHES);
+		db.execSQL("DROP TABLE IF EXISTS " + TABLE_IMAGES);
+		onCreate(db);
+	}
+	
+	// Returns the stored state of the given search or null if the search is 
+	// not in the index.
+	public synchronized SearchState load(String searchKey) {
+		SQLiteDatabase db = getWritableDatabase();
+		
+		SearchState state = null;
+		long lastUsed = 0;
+		
+		Cursor cursor = db.rawQuery("SELECT last_page, seen_cnt, passed_cnt, last_used FROM " + TABLE_SEARCHES + 
+				" WHERE search_key = ?", new String[] {searchKey});
+		try {
+			if (cursor.moveToNext()) {
+				state = new SearchState();
+				state.lastPage = cursor.getInt(0);
+				state.seenCnt = cursor.getInt(1);
+				state.passedCnt = cursor.getInt(2);
+				lastUsed = cursor.getLong(3);
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		if (state == null) {
+			return null;
+		}
+		
+		if (System.currentTimeMillis() - lastUsed > MAX_AGE) {
+			Log.i(LOG_TAG, "Dropping outdated search " + searchKey);
+			clear(searchKey);
+			return null;
+		}
+		
+		StringBuilder columns = new StringBuilder();
+		for (int i = 0; i < IMAGE_COLUMNS.length; i++) {
+			if (i > 0) {
+				columns.append(", ");
+			}
+			columns.append(IMAGE_COLUMNS[i]);
+		}
+		
+		state.images = new ArrayList<FlickrImageInfo>();
+		cursor = db.rawQuery("SELECT " + columns + " FROM " + TABLE_IMAGES + 
+				" WHERE search_key = ? ORDER BY position", new String[] {searchKey});
+		try {
+			while (cursor.moveToNext()) {
+				state.images.add(readImageInfo(cursor));
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		db.execSQL("UPDATE " + TABLE_SEARCHES + " SET last_used = ? WHERE search_key = ?", 
+				new Object[] {System.currentTimeMillis(), searchKey});
+		
+		Log.i(LOG_TAG, "Loaded " + state.images.size() + " images of search " + searchKey);
+		
+		return state;
+	}
+	
+	// Appends images to the given search. Images already in the index are ignored.
+	public synchronized void appendImages(String searchKey, List<FlickrImageInfo> images) {
+		SQLiteDatabase db = getWritableDatabase();
+		
+		db.beginTransaction();
+		try {
+			insertSearch(db, searchKey);
+			int position = queryPosition(db, "MAX", searchKey) + 1;
+			for (FlickrImageInfo imageInfo : images) {
+				insertImageInfo(db, searchKey, position++, imageInfo);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	// Inserts images in front of the images of the given search (e.g., new 
+	// uploads found when refreshing the first page).
+	public synchronized void prependImages(String searchKey, List<FlickrImageInfo> images) {
+		SQLiteDatabase db = getWritableDatabase();
+		
+		db.beginTransaction();
+		try {
+			insertSearch(db, searchKey);
+			int position = queryPosition(db, "MIN", searchKey) - images.size();
+			for (FlickrImageInfo imageInfo : images) {
+				insertImageInfo(db, searchKey, position++, imageInfo);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+	}
+	
+	// Stores the state of the given search.
+	public synchronized void updateState(String searchKey, int lastPage, int seenCnt, int passedCnt) {
+		SQLiteDatabase db = getWritableDatabase();
+		
+		db.execSQL("INSERT OR REPLACE INTO " + TABLE_SEARCHES + 
+				" (search_key, last_page, seen_cnt, passed_cnt, last_used) VALUES (?, ?, ?, ?, ?)", 
+				new Object[] {searchKey, lastPage, seenCnt, passedCnt, System.currentTimeMillis()});
+		
+		trim(db);
+	}
+	
+	public synchronized void clear(String searchKey) {
+		SQLiteDatabase db = getWritableDatabase();
+		
+		db.delete(TABLE_IMAGES, "search_key = ?", new String[] {searchKey});
+		db.delete(TABLE_SEARCHES, "search_key = ?", new String[] {searchKey});
+	}
+	
+	// Drops the least recently used searches if there are too many.
+	private void trim(SQLiteDatabase db) {
+		List<String> outdated = new ArrayList<String>();
+		
+		Cursor cursor = db.rawQuery("SELECT search_key FROM " + TABLE_SEARCHES + 
+				" ORDER BY last_used DESC", null);
+		try {
+			int cnt = 0;
+			while (cursor.moveToNext()) {
+				if (++cnt > MAX_SEARCHES) {
+					outdated.add(cursor.getString(0));
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+		
+		for (String searchKey : outdated) {
+			clear(searchKey);
+		}
+	}
+	
+	// Creates the row of a search if it does not exist yet, so images are never 
+	// stored without a search (and are dropped with it). The state is stored 
+	// when the search has finished.
+	private static void insertSearch(SQLiteDatabase db, String searchKey) {
+		db.execSQL("INSERT OR IGNORE INTO " + TABLE_SEARCHES + 
+				" (search_key, last_page, seen_cnt, passed_cnt, last_used) VALUES (?, 0, 0, 0, ?)", 
+				new Object[] {searchKey, System.currentTimeMillis()});
+	}
+	
+	private static int queryPosition(SQLiteDatabase db, String function, String searchKey) {
+		Cursor cursor = db.rawQuery("SELECT " + function + "(position) FROM " + TABLE_IMAGES + 
+				" WHERE search_key = ?", new String[] {searchKey});
+		try {
+			if (cursor.moveToNext() && !cursor.isNull(0)) {
+				return cursor.getInt(0);
+			}
+			return 0;
+		} finally {
+			cursor.close();
+		}
+	}
+	
+	private static void insertImageInfo(SQLiteDatabase db, String searchKey, int position, FlickrImageInfo imageInfo) {
+		db.execSQL("INSERT OR IGNORE INTO " + TABLE_IMAGES + " (search_key, position, " + 
+				"photo_id, secret, original_secret, server, farm, title, owner_real_name, owner_user_name, owner_nsid, " + 
+				"large_width, large_height, original_width, original_height, original_format) " +
+				"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", 
+				new Object[] {searchKey, position, 
+					imageInfo.id, imageInfo.secret, imageInfo.originalSecret, imageInfo.server, imageInfo.farm, 
+					imageInfo.title, imageInfo.ownerRealName, imageInfo.ownerUserName, imageInfo.ownerNsid, 
+					imageInfo.largeSize == null ? null : imageInfo.largeSize.width, 
+					imageInfo.largeSize == null ? null : imageInfo.largeSize.height, 
+					imageInfo.originalSize == null ? null : imageInfo.originalSize.width, 
+					imageInfo.originalSize == null ? null : imageInfo.originalSize.height, 
+					imageInfo.originalFormat});
+	}
+	
+	private static FlickrImageInfo readImageInfo(Cursor cursor) {
+		FlickrImageInfo imageInfo = new FlickrImageInfo();
+		
+		imageInfo.id = cursor.getString(0);
+		imageInfo.secret = cursor.getString(1);
+		imageInfo.originalSecret = cursor.getString(2);
+		imageInfo.server = cursor.getString(3);
+		imageInfo.farm = cursor.getString(4);
+		imageInfo.title = cursor.getString(5);
+		imageInfo.ownerRealName = cursor.getString(6);
+		imageInfo.ownerUserName = cursor.getString(7);
+		imageInfo.ownerNsid = cursor.getString(8);
+		
+		if (!cursor.isNull(9) && !cursor.isNull(10)) {
+			imageInfo.largeSize = new ImageSize(cursor.getInt(9), cursor.getInt(10));
+		}
+		
+		if (!cursor.isNull(11) && !cursor.isNull(12)) {
+			imageInfo.originalSize = new ImageSize(cursor.getInt(11), cursor.getInt(12));
+		}
+		
+		imageInfo.originalFormat = cursor.getString(13);
+		
+		return imageInfo;
+	}
+}
@@ -0,0 +1,134 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.ioutils;
+
+import java.security.InvalidParameterException;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import junit.framework.Assert;
+
+// Pool of recycled byte arrays. Buffers are handed out with acquire() and
+// given back with release(). A released buffer is kept for later requests as
+// long as the total size of all pooled buffers stays below the pool limit;
+// otherwise, the smallest buffers are dropped and left to the garbage collector.
+public class ByteArrayPool {
+	private static final int MIN_BUFFER_SIZE = 4096;
+
+	private final int maxPooledBytes;
+	private int pooledBytes;
+
+	// Sorted by buffer size (smallest first).
+	private LinkedList<byte[]> buffers = new LinkedList<byte[]>();
+
+	private int acquireCnt;
+	private int allocationCnt;
+
+	public ByteArrayPool(int maxPooledBytes) {
+		if (maxPooledBytes < 0) {
+			throw new InvalidParameterException("Pool size must be >= 0.");
+		}
+
+		this.maxPooledBytes = maxPooledBytes;
+		pooledBytes = 0;
+	}
+
+	// Returns a buffer of at least minSize bytes. The content of the buffer is undefined.
+	public synchronized byte[] acquire(int minSize) {
+		acquireCnt++;
+
+		for (ListIterator<byte[]> it = buffers.listIterator(); it.hasNext(); ) {
+			byte[] buffer = it.next();
+			if (buffer.length >= minSize) {
+				it.remove();
+				pooledBytes -= buffer.length;
+				return buffer;
+			}
+		}
+
+		allocationCnt++;
+
+		return new byte[roundUp(minSize)];
+	}
+
+	// Gives a buffer back to the pool. The caller must not use the buffer afterwards.
+	public synchronized void release(byte[] buffer) {
+		if (buffer == null || buffer.length > maxPooledBytes) {
+			return;
+		}
+
+		ListIterator<byte[]> it = buffers.listIterator();
+		while (it.hasNext()) {
+			byte[] b = it.next();
+			Assert.assertTrue(b != buffer);
+			if (b.length >= buffer.length) {
+				it.previous();
+				break;
+			}
+		}
+		it.add(buffer);
+		pooledBytes += buffer.length;
+
+		while (pooledBytes > maxPooledBytes) {
+			byte[] dropped = buffers.removeFirst();
+			pooledBytes -= dropped.length;
+		}
+	}
+
+	// Returns a buffer of at least minSize bytes holding the first usedLength
+	// bytes of the given buffer, for reading data of unknown length (see
+	// ThumbnailDecoder). If the given buffer is too small, it is released to
+	// the pool and must not be used any more.
+	public byte[] grow(byte[] buffer, int usedLength, int minSize) {
+		if (buffer.length >= minSize) {
+			return buffer;
+		}
+
+		// Grow by at least a factor of 2 to keep the number of copies small.
+		int newSize = buffer.length*2 > minSize ? buffer.length*2 : minSize;
+		byte[] newBuffer = acquire(newSize);
+		System.arraycopy(buffer, 0, newBuffer, 0, usedLength);
+		release(buffer);
+
+		return newBuffer;
+	}
+
+	public synchronized int getAcquireCount() {
+		return acquireCnt;
+	}
+
+	public synchronized int getAllocationCount() {
+		return allocationCnt;
+	}
+
+	public synchronized int getPooledBytes() {
+		return pooledBytes;
+	}
+
+	private static int roundUp(int size) {
+		// Round up to a multiple of MIN_BUFFER_SIZE, so buffers of similar
+		// size can be re-used for each other.
+		if (size <= MIN_BUFFER_SIZE) {
+			return MIN_BUFFER_SIZE;
+		}
+
+		return ((size + MIN_BUFFER_SIZE - 1)/MIN_BUFFER_SIZE) * MIN_BUFFER_SIZE;
+	}
+}
@@ -0,0 +1,382 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.ioutils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Streaming JSON tokenizer. The input is read in blocks into a byte buffer 
+// and decoded (UTF-8) token by token. The text of names and values is kept 
+// in a re-usable character buffer, so names can be compared and numbers be 
+// parsed without creating strings. A tokenizer can be re-used for several 
+// documents with setInput().
+//
+// The tokenizer does not validate the structure of the document. Commas 
+// are skipped, and colons are only used to tell names from string values.
+public class JsonTokenizer {
+	public static final int END_DOCUMENT = 0;
+	public static final int BEGIN_OBJECT = 1;
+	public static final int END_OBJECT = 2;
+	public static final int BEGIN_ARRAY = 3;
+	public static final int END_ARRAY = 4;
+	public static final int NAME = 5;
+	public static final int STRING = 6;
+	public static final int NUMBER = 7;
+	public static final int BOOLEAN = 8;
+	public static final int NULL = 9;
+	
+	private InputStream is;
+	private byte[] buffer;
+	private int pos;
+	private int limit;
+	private long byteCnt;
+	
+	private char[] value = new char[64];
+	private int valueLength;
+	
+	private int token;
+	private int depth;
+	
+	public JsonTokenizer(int bufferSize) {
+		buffer = new byte[bufferSize];
+	}
+	
+	// Starts a new document. Passing null drops the reference to the last input.
+	public void setInput(InputStream is) {
+		this.is = is;
+		pos = 0;
+		limit = 0;
+		byteCnt = 0;
+		valueLength = 0;
+		token = END_DOCUMENT;
+		depth = 0;
+	}
+	
+	// Reads the next token.
+	public int next() throws IOException {
+		int c = readNonSeparator();
+		
+		switch (c) {
+		case -1 :
+			token = END_DOCUMENT;
+			break;
+		case '{' :
+			depth++;
+			token = BEGIN_OBJECT;
+			break;
+		case '}' :
+			depth--;
+			token = END_OBJECT;
+			break;
+		case '[' :
+			depth++;
+			token = BEGIN_ARRAY;
+			break;
+		case ']' :
+			depth--;
+			token = END_ARRAY;
+			break;
+		case '"' :
+			readString();
+			if (peekNonWhitespace() == ':') {
+				pos++;
+				token = NAME;
+			} else {
+				token = STRING;
+			}
+			break;
+		default :
+			readWord(c);
+			if (c == '-' || (c >= '0' && c <= '9')) {
+				token = NUMBER;
+			} else if (valueEquals("true") || valueEquals("false")) {
+				token = BOOLEAN;
+			} else if (valueEquals("null")) {
+				token = NULL;
+			} else {
+				throw new IOException("Unexpected JSON token " + getString());
+			}
+		}
+		
+		return token;
+	}
+	
+	public int getToken() {
+		return token;
+	}
+	
+	// Skips the current value. If the current token starts an object or array,
+	// everything up to the matching end token is skipped.
+	public void skipValue() throws IOException {
+		if (token != BEGIN_OBJECT && token != BEGIN_ARRAY) {
+			return;
+		}
+		
+		int valueDepth = depth;
+		while (depth >= valueDepth) {
+			if (next() == END_DOCUMENT) {
+				throw new EOFException("Unexpected end of JSON document");
+			}
+		}
+	}
+	
+	// Reads the next value and returns its text, or null if the value is null,
+	// an object or an array.
+	public String nextString() throws IOException {
+		next();
+		
+		if (token == STRING || token == NUMBER || token == BOOLEAN) {
+			return getString();
+		}
+		
+		skipValue();
+		return null;
+	}
+	
+	// Reads the next value and returns it as integer. Numbers given as strings
+	// are accepted, too. Returns defaultValue if the value is not a non-negative
+	// integer.
+	public int nextInt(int defaultValue) throws IOException {
+		next();
+		
+		if (token == STRING || token == NUMBER) {
+			return getInt(defaultValue);
+		}
+		
+		skipValue();
+		return defaultValue;
+	}
+	
+	// Compares the text of the current name or value to the given string 
+	// without creating a string.
+	public boolean valueEquals(String str) {
+		int len = str.length();
+		if (len != valueLength) {
+			return false;
+		}
+		
+		for (int i = 0; i < len; i++) {
+			if (value[i] != str.charAt(i)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	public String getString() {
+		return new String(value, 0, valueLength);
+	}
+	
+	public int getInt(int defaultValue) {
+		if (valueLength == 0 || valueLength > 9) {
+			return defaultValue;
+		}
+		
+		int result = 0;
+		for (int i = 0; i < valueLength; i++) {
+			char c = value[i];
+			if (c < '0' || c > '9') {
+				return defaultValue;
+			}
+			result = 10*result + (c - '0');
+		}
+		
+		return result;
+	}
+	
+	// Number of bytes read from the input so far.
+	public long getByteCount() {
+		return byteCnt;
+	}
+	
+	private boolean fill() throws IOException {
+		int readCnt = is.read(buffer, 0, buffer.length);
+		if (readCnt <= 0) {
+			return false;
+		}
+		
+		pos = 0;
+		limit = readCnt;
+		byteCnt += readCnt;
+		
+		return true;
+	}
+	
+	private int readByte() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		
+		return buffer[pos++] & 0xff;
+	}
+	
+	private int peekByte() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		
+		return buffer[pos] & 0xff;
+	}
+	
+	private static boolean isWhitespace(int c) {
+		return (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+	}
+	
+	private int readNonSeparator() throws IOException {
+		int c;
+		do {
+			c = readByte();
+		} while (isWhitespace(c) || c == ',' || c == ':');
+		
+		return c;
+	}
+	
+	private int peekNonWhitespace() throws IOException {
+		int c;
+		while (isWhitespace(c = peekByte())) {
+			pos++;
+		}
+		
+		return c;
+	}
+	
+	private void append(char c) {
+		if (valueLength == value.length) {
+			char[] newValue = new char[2*value.length];
+			System.arraycopy(value, 0, newValue, 0, valueLength);
+			value = newValue;
+		}
+		
+		value[valueLength++] = c;
+	}
+	
+	// Reads the rest of a literal or number.
+	private void readWord(int first) throws IOException {
+		valueLength = 0;
+		append((char) first);
+		
+		int c;
+		while ((c = peekByte()) != -1) {
+			if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+					c == '-' || c == '+' || c == '.') {
+				append((char) c);
+				pos++;
+			} else {
+				break;
+			}
+		}
+	}
+	
+	// Reads the rest of a string (the opening quote has already been read).
+	private void readString() throws IOException {
+		valueLength = 0;
+		
+		while (true) {
+			int c = readByte();
+			
+			if (c == -1) {
+				throw new EOFException("Unterminated JSON string");
+			} else if (c == '"') {
+				return;
+			} else if (c == '\\') {
+				readEscape();
+			} else if (c < 0x80) {
+				append((char) c);
+			} else {
+				readMultiByteChar(c);
+			}
+		}
+	}
+	
+	private void readEscape() throws IOException {
+		int c = readByte();
+		
+		switch (c) {
+		case 'b' :
+			append('\b');
+			break;
+		case 'f' :
+			append('\f');
+			break;
+		case 'n' :
+			append('\n');
+			break;
+		case 'r' :
+			append('\r');
+			break;
+		case 't' :
+			append('\t');
+			break;
+		case 'u' :
+			int codeUnit = 0;
+			for (int i = 0; i < 4; i++) {
+				int digit = Character.digit(readByte(), 16);
+				if (digit < 0) {
+					throw new IOException("Invalid unicode escape in JSON string");
+				}
+				codeUnit = (codeUnit << 4) | digit;
+			}
+			append((char) codeUnit);
+			break;
+		case -1 :
+			throw new EOFException("Unterminated JSON string");
+		default :
+			// '"', '\\', '/'
+			append((char) c);
+		}
+	}
+	
+	private void readMultiByteChar(int first) throws IOException {
+		int codePoint;
+		int followingCnt;
+		
+		if ((first & 0xe0) == 0xc0) {
+			codePoint = first & 0x1f;
+			followingCnt = 1;
+		} else if ((first & 0xf0) == 0xe0) {
+			codePoint = first & 0x0f;
+			followingCnt = 2;
+		} else if ((first & 0xf8) == 0xf0) {
+			codePoint = first & 0x07;
+			followingCnt = 3;
+		} else {
+			append('\ufffd');
+			return;
+		}
+		
+		for (int i = 0; i < followingCnt; i++) {
+			int c = readByte();
+			if ((c & 0xc0) != 0x80) {
+				throw new IOException("Malformed UTF-8 sequence in JSON string");
+			}
+			codePoint = (codePoint << 6) | (c & 0x3f);
+		}
+		
+		if (codePoint >= 0x10000) {
+			codePoint -= 0x10000;
+			append((char) (0xd800 + (codePoint >> 10)));
+			append((char) (0xdc00 + (codePoint & 0x3ff)));
+		} else {
+			append((char) codePoint);
+		}
+	}
+}
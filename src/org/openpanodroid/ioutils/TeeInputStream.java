@@ -0,0 +1,81 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.ioutils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Input stream that writes a copy of all data read from the underlying 
+// stream to an output stream.
+public class TeeInputStream extends FilterInputStream {
+	private OutputStream copy;
+	
+	public TeeInputStream(InputStream is, OutputStream copy) {
+		super(is);
+		this.copy = copy;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b != -1) {
+			copy.write(b);
+		}
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] buffer, int offset, int count) throws IOException {
+		int readCnt = super.read(buffer, offset, count);
+		if (readCnt > 0) {
+			copy.write(buffer, offset, readCnt);
+		}
+		return readCnt;
+	}
+	
+	@Override
+	public long skip(long byteCount) throws IOException {
+		// Skipped data must be copied, too.
+		byte[] buffer = new byte[1024];
+		long skipped = 0;
+		while (skipped < byteCount) {
+			int readCnt = read(buffer, 0, (int) Math.min(buffer.length, byteCount-skipped));
+			if (readCnt == -1) {
+				break;
+			}
+			skipped += readCnt;
+		}
+		return skipped;
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+	
+	// Reads the remaining data of the underlying stream, so the copy is complete.
+	public void drain() throws IOException {
+		byte[] buffer = new byte[1024];
+		while (read(buffer, 0, buffer.length) != -1) {
+		}
+	}
+}
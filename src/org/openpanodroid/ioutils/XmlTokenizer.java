@@ -0,0 +1,533 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.ioutils;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Streaming XML tokenizer for simple documents like the responses of the 
+// Flickr API. Like the JsonTokenizer, it reads the input in blocks into a 
+// byte buffer and decodes it (UTF-8) into a re-usable character buffer. Tag 
+// and attribute names can be compared and numeric attribute values be parsed 
+// directly from this buffer, so only the strings a client actually asks for 
+// are created. A tokenizer can be re-used for several documents with 
+// setInput().
+//
+// The tokenizer does not validate the document. Processing instructions, 
+// comments, document type declarations, and CDATA sections are skipped. 
+// Text consisting of whitespace only is not reported. Besides character 
+// references, only the predefined entities are supported.
+public class XmlTokenizer {
+	public static final int END_DOCUMENT = 0;
+	public static final int START_TAG = 1;
+	public static final int END_TAG = 2;
+	public static final int TEXT = 3;
+	
+	private static final int MAX_ENTITY_LENGTH = 10;
+	
+	private InputStream is;
+	private byte[] buffer;
+	private int pos;
+	private int limit;
+	private long byteCnt;
+	
+	// Text of the current token. For tags, the name is followed by the names 
+	// and values of the attributes.
+	private char[] chars = new char[256];
+	private int charCnt;
+	private int nameLength;
+	
+	// Start and end of the name and of the value of each attribute in chars.
+	private int[] attributes = new int[4*16];
+	private int attributeCnt;
+	
+	private char[] entity = new char[MAX_ENTITY_LENGTH];
+	
+	private int token;
+	// Set if the current start tag closes itself (<.../>). The end tag is 
+	// reported by the next call of next().
+	private boolean isEmptyElement;
+	
+	public XmlTokenizer(int bufferSize) {
+		buffer = new byte[bufferSize];
+	}
+	
+	// Starts a new document. Passing null drops the reference to the last input.
+	public void setInput(InputStream is) {
+		this.is = is;
+		pos = 0;
+		limit = 0;
+		byteCnt = 0;
+		charCnt = 0;
+		nameLength = 0;
+		attributeCnt = 0;
+		token = END_DOCUMENT;
+		isEmptyElement = false;
+	}
+	
+	// Reads the next token.
+	public int next() throws IOException {
+		if (isEmptyElement) {
+			// The name of the start tag is still in the buffer.
+			isEmptyElement = false;
+			attributeCnt = 0;
+			token = END_TAG;
+			return token;
+		}
+		
+		while (true) {
+			int c = readByte();
+			
+			if (c == -1) {
+				token = END_DOCUMENT;
+				return token;
+			} else if (c != '<') {
+				if (readText(c)) {
+					token = TEXT;
+					return token;
+				}
+				continue;
+			}
+			
+			c = readByte();
+			if (c == '?') {
+				skipTo('?', '>');
+			} else if (c == '!') {
+				skipDeclaration();
+			} else if (c == '/') {
+				readEndTag();
+				token = END_TAG;
+				return token;
+			} else {
+				readStartTag(c);
+				token = START_TAG;
+				return token;
+			}
+		}
+	}
+	
+	public int getToken() {
+		return token;
+	}
+	
+	// Compares the name of the current tag to the given string without creating
+	// a string.
+	public boolean nameEquals(String str) {
+		return (token == START_TAG || token == END_TAG) && equals(0, nameLength, str);
+	}
+	
+	public int getAttributeCount() {
+		return attributeCnt;
+	}
+	
+	public boolean attributeNameEquals(int index, String str) {
+		return equals(attributes[4*index], attributes[4*index+1], str);
+	}
+	
+	public boolean attributeValueEquals(int index, String str) {
+		return equals(attributes[4*index+2], attributes[4*index+3], str);
+	}
+	
+	public String getAttributeValue(int index) {
+		int start = attributes[4*index+2];
+		return new String(chars, start, attributes[4*index+3]-start);
+	}
+	
+	// Parses the value of an attribute as non-negative decimal integer. Returns 
+	// defaultValue if the value is not a number.
+	public int getAttributeInt(int index, int defaultValue) {
+		int start = attributes[4*index+2];
+		int end = attributes[4*index+3];
+		if (end == start || end-start > 9) {
+			return defaultValue;
+		}
+		
+		int result = 0;
+		for (int i = start; i < end; i++) {
+			char c = chars[i];
+			if (c < '0' || c > '9') {
+				return defaultValue;
+			}
+			result = 10*result + (c - '0');
+		}
+		
+		return result;
+	}
+	
+	// Returns the text of the current text token.
+	public String getText() {
+		return new String(chars, 0, charCnt);
+	}
+	
+	// If positioned on a start tag, reads the text of the element and moves on 
+	// to its end tag. Returns an empty string if the element has no text.
+	public String nextText() throws IOException {
+		if (token != START_TAG) {
+			throw new IOException("Not positioned on a start tag");
+		}
+		
+		if (next() == END_TAG) {
+			return "";
+		}
+		
+		if (token != TEXT) {
+			throw new IOException("Element does not contain text only");
+		}
+		
+		String text = getText();
+		if (next() != END_TAG) {
+			throw new IOException("Element does not contain text only");
+		}
+		
+		return text;
+	}
+	
+	// Number of bytes read from the input so far.
+	public long getByteCount() {
+		return byteCnt;
+	}
+	
+	private boolean equals(int start, int end, String str) {
+		int len = str.length();
+		if (len != end-start) {
+			return false;
+		}
+		
+		for (int i = 0; i < len; i++) {
+			if (chars[start+i] != str.charAt(i)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private boolean fill() throws IOException {
+		int readCnt = is.read(buffer, 0, buffer.length);
+		if (readCnt <= 0) {
+			return false;
+		}
+		
+		pos = 0;
+		limit = readCnt;
+		byteCnt += readCnt;
+		
+		return true;
+	}
+	
+	private int readByte() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		
+		return buffer[pos++] & 0xff;
+	}
+	
+	private int peekByte() throws IOException {
+		if (pos == limit && !fill()) {
+			return -1;
+		}
+		
+		return buffer[pos] & 0xff;
+	}
+	
+	private int readNonWhitespace() throws IOException {
+		int c;
+		do {
+			c = readByte();
+		} while (isWhitespace(c));
+		
+		return c;
+	}
+	
+	private static boolean isWhitespace(int c) {
+		return (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+	}
+	
+	private void append(char c) {
+		if (charCnt == chars.length) {
+			char[] newChars = new char[2*chars.length];
+			System.arraycopy(chars, 0, newChars, 0, charCnt);
+			chars = newChars;
+		}
+		
+		chars[charCnt++] = c;
+	}
+	
+	// Skips everything up to and including the given two characters.
+	private void skipTo(int c1, int c2) throws IOException {
+		int last = -1;
+		int c;
+		while ((c = readByte()) != -1) {
+			if (last == c1 && c == c2) {
+				return;
+			}
+			last = c;
+		}
+		
+		throw new EOFException("Unexpected end of XML document");
+	}
+	
+	// Skips a comment, a CDATA section or a declaration (the "<!" has been read).
+	private void skipDeclaration() throws IOException {
+		int c = readByte();
+		if (c == '-') {
+			skipTo('-', '>');
+		} else if (c == '[') {
+			skipTo(']', '>');
+		} else {
+			int depth = 1;
+			while (depth > 0) {
+				c = readByte();
+				if (c == -1) {
+					throw new EOFException("Unexpected end of XML document");
+				} else if (c == '<') {
+					depth++;
+				} else if (c == '>') {
+					depth--;
+				}
+			}
+		}
+	}
+	
+	// Reads text up to the next tag. Returns false if the text is whitespace only.
+	private boolean readText(int first) throws IOException {
+		charCnt = 0;
+		boolean isWhitespaceOnly = true;
+		
+		int c = first;
+		while (true) {
+			if (!isWhitespace(c)) {
+				isWhitespaceOnly = false;
+			}
+			appendChar(c);
+			
+			c = peekByte();
+			if (c == -1 || c == '<') {
+				break;
+			}
+			pos++;
+		}
+		
+		return !isWhitespaceOnly;
+	}
+	
+	// Appends a character of text or of an attribute value, which might be the 
+	// start of a reference or of a multi-byte sequence.
+	private void appendChar(int c) throws IOException {
+		if (c == '&') {
+			readReference();
+		} else if (c < 0x80) {
+			append((char) c);
+		} else {
+			readMultiByteChar(c);
+		}
+	}
+	
+	private void readStartTag(int first) throws IOException {
+		charCnt = 0;
+		attributeCnt = 0;
+		
+		int c = first;
+		while (c != -1 && !isWhitespace(c) && c != '/' && c != '>') {
+			append((char) c);
+			c = readByte();
+		}
+		nameLength = charCnt;
+		
+		while (true) {
+			if (isWhitespace(c)) {
+				c = readNonWhitespace();
+			}
+			
+			if (c == '>') {
+				return;
+			} else if (c == '/') {
+				if (readByte() != '>') {
+					throw new IOException("Malformed empty element tag");
+				}
+				isEmptyElement = true;
+				return;
+			} else if (c == -1) {
+				throw new EOFException("Unexpected end of XML document");
+			}
+			
+			c = readAttribute(c);
+		}
+	}
+	
+	// Reads an attribute and returns the character following it.
+	private int readAttribute(int first) throws IOException {
+		if (4*attributeCnt == attributes.length) {
+			int[] newAttributes = new int[2*attributes.length];
+			System.arraycopy(attributes, 0, newAttributes, 0, attributes.length);
+			attributes = newAttributes;
+		}
+		int index = 4*attributeCnt;
+		
+		attributes[index] = charCnt;
+		int c = first;
+		while (c != -1 && c != '=' && !isWhitespace(c)) {
+			append((char) c);
+			c = readByte();
+		}
+		attributes[index+1] = charCnt;
+		
+		if (isWhitespace(c)) {
+			c = readNonWhitespace();
+		}
+		if (c != '=') {
+			throw new IOException("Attribute without value");
+		}
+		
+		int quote = readNonWhitespace();
+		if (quote != '"' && quote != '\'') {
+			throw new IOException("Attribute value not quoted");
+		}
+		
+		attributes[index+2] = charCnt;
+		while ((c = readByte()) != quote) {
+			if (c == -1) {
+				throw new EOFException("Unexpected end of XML document");
+			}
+			appendChar(c);
+		}
+		attributes[index+3] = charCnt;
+		
+		attributeCnt++;
+		
+		return readByte();
+	}
+	
+	private void readEndTag() throws IOException {
+		charCnt = 0;
+		attributeCnt = 0;
+		
+		int c = readByte();
+		while (c != -1 && c != '>') {
+			if (!isWhitespace(c)) {
+				append((char) c);
+			}
+			c = readByte();
+		}
+		nameLength = charCnt;
+		
+		if (c == -1) {
+			throw new EOFException("Unexpected end of XML document");
+		}
+	}
+	
+	// Reads a character or entity reference (the '&' has been read).
+	private void readReference() throws IOException {
+		int len = 0;
+		int c;
+		while ((c = readByte()) != ';') {
+			if (c == -1 || len == MAX_ENTITY_LENGTH) {
+				throw new IOException("Malformed reference in XML document");
+			}
+			entity[len++] = (char) c;
+		}
+		
+		if (len > 1 && entity[0] == '#') {
+			int radix = 10;
+			int start = 1;
+			if (entity[1] == 'x') {
+				radix = 16;
+				start = 2;
+			}
+			
+			int codePoint = 0;
+			for (int i = start; i < len; i++) {
+				int digit = Character.digit(entity[i], radix);
+				if (digit < 0) {
+					throw new IOException("Malformed character reference in XML document");
+				}
+				codePoint = codePoint*radix + digit;
+			}
+			appendCodePoint(codePoint);
+		} else if (entityEquals(len, "amp")) {
+			append('&');
+		} else if (entityEquals(len, "lt")) {
+			append('<');
+		} else if (entityEquals(len, "gt")) {
+			append('>');
+		} else if (entityEquals(len, "quot")) {
+			append('"');
+		} else if (entityEquals(len, "apos")) {
+			append('\'');
+		} else {
+			append('\ufffd');
+		}
+	}
+	
+	private boolean entityEquals(int len, String name) {
+		if (len != name.length()) {
+			return false;
+		}
+		
+		for (int i = 0; i < len; i++) {
+			if (entity[i] != name.charAt(i)) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	private void appendCodePoint(int codePoint) {
+		if (codePoint >= 0x10000) {
+			codePoint -= 0x10000;
+			append((char) (0xd800 + (codePoint >> 10)));
+			append((char) (0xdc00 + (codePoint & 0x3ff)));
+		} else {
+			append((char) codePoint);
+		}
+	}
+	
+	private void readMultiByteChar(int first) throws IOException {
+		int codePoint;
+		int followingCnt;
+		
+		if ((first & 0xe0) == 0xc0) {
+			codePoint = first & 0x1f;
+			followingCnt = 1;
+		} else if ((first & 0xf0) == 0xe0) {
+			codePoint = first & 0x0f;
+			followingCnt = 2;
+		} else if ((first & 0xf8) == 0xf0) {
+			codePoint = first & 0x07;
+			followingCnt = 3;
+		} else {
+			append('\ufffd');
+			return;
+		}
+		
+		for (int i = 0; i < followingCnt; i++) {
+			int c = readByte();
+			if ((c & 0xc0) != 0x80) {
+				throw new IOException("Malformed UTF-8 sequence in XML document");
+			}
+			codePoint = (codePoint << 6) | (c & 0x3f);
+		}
+		
+		appendCodePoint(codePoint);
+	}
+}
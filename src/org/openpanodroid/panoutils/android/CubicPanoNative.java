@@ -103,6 +103,20 @@ public class CubicPanoNative {
     	return faceBmp;
     }
     
+    // Calculates a cube side into the given (square) face bitmap, e.g., a bitmap 
+    // taken from a pool. Returns false if the bitmaps are not in ARGB_8888 format.
+    public static boolean getCubeSide(Bitmap pano, TextureFaces face, Bitmap faceBmp) {
+    	if (pano.getConfig() != Bitmap.Config.ARGB_8888 || faceBmp.getConfig() != Bitmap.Config.ARGB_8888) {
+    		return false;
+    	}
+    	
+    	Assert.assertTrue(faceBmp.getWidth() == faceBmp.getHeight());
+    	
+    	calculateCubeSide(pano, faceBmp, face.ordinal());
+    	
+    	return true;
+    }
+    
     // implemented by libcubicano-jni.so
     private static native void calculateCubeSide(Bitmap panoBmp, Bitmap faceBmp, int faceNo);
 
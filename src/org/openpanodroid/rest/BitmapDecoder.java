@@ -0,0 +1,35 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.rest;
+
+import java.io.InputStream;
+
+import android.graphics.Bitmap;
+
+// Turns the body of a bitmap response into a bitmap. Decoders are called on 
+// the thread of the requestor that uses them.
+public interface BitmapDecoder {
+	// Returns null if the data could not be decoded.
+	public Bitmap decode(byte[] data, int offset, int length);
+	
+	// Decodes a response of unknown length. Returns null if the data could not
+	// be decoded.
+	public Bitmap decode(InputStream is);
+}
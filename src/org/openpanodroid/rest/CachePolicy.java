@@ -0,0 +1,36 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.rest;
+
+import java.net.URL;
+
+// Decides whether and how long responses of a REST API are cached.
+public interface CachePolicy {
+	// Returns the key under which the response for this URL is cached, or null
+	// if the response must not be cached.
+	public String getCacheKey(URL url);
+	
+	// Time after which a cached response has to be revalidated [ms].
+	public long getTimeToLive(URL url);
+	
+	// Additional time during which an expired response may still be used while 
+	// it is being revalidated [ms].
+	public long getMaxStale(URL url);
+}
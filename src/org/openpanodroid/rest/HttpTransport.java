@@ -0,0 +1,352 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.rest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+// All HTTP traffic of the application goes through this class. It applies
+// connect and read timeouts, negotiates gzip compression where requested,
+// and makes sure that connections are handed back to the keep-alive pool of
+// HttpURLConnection after a response has been read. For each request,
+// timing and size information is recorded per host.
+//
+// The transport does not know about any particular host. Connections are 
+// opened by a ConnectionFactory, so a transport can be pointed at a local 
+// HTTP stand-in for testing (see setInstance()).
+public class HttpTransport {
+	public static final String LOG_TAG = HttpTransport.class.getSimpleName();
+
+	public final static int DEFAULT_CONNECT_TIMEOUT = 15000; // [ms]
+	public final static int DEFAULT_READ_TIMEOUT = 30000; // [ms]
+
+	// Idle keep-alive connections kept per host (api.flickr.com, farm image hosts).
+	private final static int MAX_CONNECTIONS_PER_HOST = 5;
+
+	// If less than this number of bytes is left unread when a response is closed,
+	// we read the rest so the connection can be re-used. Otherwise, it is cheaper
+	// to drop the connection.
+	private final static int MAX_DRAIN_SIZE = 16*1024;
+
+	private static HttpTransport instance = null;
+
+	private int connectTimeout;
+	private int readTimeout;
+	private ConnectionFactory connectionFactory;
+
+	private Map<String, Statistics> hostStatistics = new HashMap<String, Statistics>();
+
+	static {
+		System.setProperty("http.keepAlive", "true");
+		System.setProperty("http.maxConnections", Integer.toString(MAX_CONNECTIONS_PER_HOST));
+	}
+
+	// Opens the connection for an URL.
+	public interface ConnectionFactory {
+		public URLConnection openConnection(URL url) throws IOException;
+	}
+	
+	private static class DefaultConnectionFactory implements ConnectionFactory {
+		@Override
+		public URLConnection openConnection(URL url) throws IOException {
+			return url.openConnection();
+		}
+	}
+
+	public static class Statistics {
+		public int requestCnt;
+		public int failedCnt;
+		// Bytes transferred over the network (compressed bodies are counted compressed).
+		public long byteCnt;
+		// Bytes of the response bodies after decompression.
+		public long decodedByteCnt;
+		public long connectTime; // [ms]
+		public long firstByteTime; // [ms]
+		public long totalTime; // [ms]
+
+		public Statistics() {
+		}
+
+		public Statistics(Statistics other) {
+			requestCnt = other.requestCnt;
+			failedCnt = other.failedCnt;
+			byteCnt = other.byteCnt;
+			decodedByteCnt = other.decodedByteCnt;
+			connectTime = other.connectTime;
+			firstByteTime = other.firstByteTime;
+			totalTime = other.totalTime;
+		}
+	}
+
+	public class Response {
+		private URLConnection connection;
+		// Counts the bytes received from the network, below decompression.
+		private CountingInputStream wireStream;
+		// Counts the (decompressed) bytes read by the client.
+		private CountingInputStream is;
+		private int contentLength;
+
+		private long tStart;
+		private long connectTime;
+		private long firstByteTime;
+		private boolean closed = false;
+
+		private Response(URLConnection connection, CountingInputStream wireStream, InputStream is, 
+				int contentLength, long tStart, long connectTime, long firstByteTime) {
+			this.connection = connection;
+			this.wireStream = wireStream;
+			this.is = new CountingInputStream(is);
+			this.contentLength = contentLength;
+			this.tStart = tStart;
+			this.connectTime = connectTime;
+			this.firstByteTime = firstByteTime;
+		}
+
+		public InputStream getInputStream() {
+			return is;
+		}
+
+		// Length of the (decompressed) response body or -1 if unknown.
+		public int getContentLength() {
+			return contentLength;
+		}
+
+		public URL getURL() {
+			return connection.getURL();
+		}
+
+		// Number of bytes received from the network so far (before decompression).
+		public long getTransferredByteCount() {
+			return wireStream.getByteCount();
+		}
+
+		// Closes the response after it has been read successfully. The underlying
+		// connection is returned to the keep-alive pool.
+		public void close() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			try {
+				byte[] buffer = new byte[1024];
+				int drained = 0;
+				int readCnt;
+				while (drained < MAX_DRAIN_SIZE && (readCnt = is.read(buffer)) != -1) {
+					drained += readCnt;
+				}
+				is.close();
+			} catch (IOException e) {
+				disconnect();
+			}
+
+			finishRequest(this, true);
+		}
+
+		// Closes the response without re-using the connection, e.g., after a cancelled
+		// or failed request.
+		public void abort() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+
+			try {
+				is.close();
+			} catch (IOException e) {}
+			disconnect();
+
+			finishRequest(this, false);
+		}
+
+		private void disconnect() {
+			if (connection instanceof HttpURLConnection) {
+				((HttpURLConnection) connection).disconnect();
+			}
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		private long byteCnt = 0;
+
+		public CountingInputStream(InputStream is) {
+			super(is);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				byteCnt++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int readCnt = super.read(buffer, offset, count);
+			if (readCnt > 0) {
+				byteCnt += readCnt;
+			}
+			return readCnt;
+		}
+
+		public long getByteCount() {
+			return byteCnt;
+		}
+	}
+
+	public static synchronized HttpTransport getInstance() {
+		if (instance == null) {
+			instance = new HttpTransport(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+		}
+
+		return instance;
+	}
+
+	// Replaces the transport used by the application, e.g., by a transport with a 
+	// connection factory for a local stand-in.
+	public static synchronized void setInstance(HttpTransport transport) {
+		instance = transport;
+	}
+
+	public HttpTransport(int connectTimeout, int readTimeout) {
+		this(connectTimeout, readTimeout, new DefaultConnectionFactory());
+	}
+
+	public HttpTransport(int connectTimeout, int readTimeout, ConnectionFactory connectionFactory) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		this.connectionFactory = connectionFactory;
+	}
+
+	// Opens the given URL. If acceptCompressed is true, the server may send a gzip
+	// compressed body, which is transparently decompressed. This only pays off
+	// for text content like XML; images are already compressed.
+	public Response open(URL url, boolean acceptCompressed) throws IOException {
+		long tStart = SystemClock.elapsedRealtime();
+
+		URLConnection connection = connectionFactory.openConnection(url);
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		connection.setUseCaches(false);
+
+		if (connection instanceof HttpURLConnection) {
+			connection.setRequestProperty("Accept-Encoding", acceptCompressed ? "gzip" : "identity");
+		}
+
+		CountingInputStream wireStream;
+		InputStream is;
+		int contentLength;
+		long connectTime;
+		long firstByteTime;
+
+		try {
+			connection.connect();
+			connectTime = SystemClock.elapsedRealtime() - tStart;
+
+			if (connection instanceof HttpURLConnection) {
+				int responseCode = ((HttpURLConnection) connection).getResponseCode();
+				if (responseCode >= 400) {
+					throw new IOException("HTTP error " + responseCode);
+				}
+			}
+
+			wireStream = new CountingInputStream(connection.getInputStream());
+			is = wireStream;
+			firstByteTime = SystemClock.elapsedRealtime() - tStart;
+			contentLength = connection.getContentLength();
+
+			String encoding = connection.getContentEncoding();
+			if (encoding != null && encoding.equalsIgnoreCase("gzip")) {
+				is = new GZIPInputStream(is);
+				// Content length refers to the compressed body.
+				contentLength = -1;
+			}
+		} catch (IOException e) {
+			if (connection instanceof HttpURLConnection) {
+				((HttpURLConnection) connection).disconnect();
+			}
+
+			synchronized (this) {
+				Statistics stats = getHostStatistics(url.getHost());
+				stats.requestCnt++;
+				stats.failedCnt++;
+			}
+
+			throw e;
+		}
+
+		return new Response(connection, wireStream, is, contentLength, tStart, connectTime, firstByteTime);
+	}
+
+	public synchronized Statistics getStatistics(String host) {
+		return new Statistics(getHostStatistics(host));
+	}
+
+	private Statistics getHostStatistics(String host) {
+		if (host == null) {
+			host = "";
+		}
+
+		Statistics stats = hostStatistics.get(host);
+		if (stats == null) {
+			stats = new Statistics();
+			hostStatistics.put(host, stats);
+		}
+
+		return stats;
+	}
+
+	private void finishRequest(Response response, boolean success) {
+		long totalTime = SystemClock.elapsedRealtime() - response.tStart;
+		long byteCnt = response.wireStream.getByteCount();
+		long decodedByteCnt = response.is.getByteCount();
+		String host = response.getURL().getHost();
+
+		synchronized (this) {
+			Statistics stats = getHostStatistics(host);
+			stats.requestCnt++;
+			if (!success) {
+				stats.failedCnt++;
+			}
+			stats.byteCnt += byteCnt;
+			stats.decodedByteCnt += decodedByteCnt;
+			stats.connectTime += response.connectTime;
+			stats.firstByteTime += response.firstByteTime;
+			stats.totalTime += totalTime;
+		}
+
+		Log.i(LOG_TAG, "Request to " + host + (success ? " finished" : " aborted") +
+				": connect " + response.connectTime + " ms; first byte " + response.firstByteTime +
+				" ms; total " + totalTime + " ms; " + byteCnt + " bytes transferred (" + decodedByteCnt + 
+				" bytes decoded)");
+	}
+}
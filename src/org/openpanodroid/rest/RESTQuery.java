@@ -24,6 +24,9 @@ import android.os.Handler;
 public class RESTQuery {
 	public Handler callbackHandler;
 	
+	// Request URL of this query. Set by the requestor.
+	String requestKey = null;
+	
 	public RESTQuery(Handler callbackHandler) {
 		this.callbackHandler = callbackHandler;
 	}
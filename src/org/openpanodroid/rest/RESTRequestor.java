@@ -19,13 +19,19 @@
 
 package org.openpanodroid.rest;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 import junit.framework.Assert;
 
+import org.openpanodroid.ioutils.TeeInputStream;
+
 import android.os.Message;
 import android.util.Log;
 
@@ -35,14 +41,22 @@ abstract public class RESTRequestor extends Thread {
 	public final static int RESPONSE_QUERY_FINISHED = 1;
 	public final static int RESPONSE_QUERY_FAILED = 2;
 	public final static int RESPONSE_PROGRESS = 3;
+	public final static int RESPONSE_PARTIAL_RESULT = 4;
 	
 	private Object result;
 	private String errorMsg;
 	private RESTQuery currentQuery;
+	// Key of the in-flight request fetched by this requestor (if any).
+	private String currentRequestKey;
 	private LinkedList<RESTQuery> queue = new LinkedList<RESTQuery>();
+	// Network response of the current request. null while a cached response is parsed.
+	private HttpTransport.Response currentResponse;
 	
 	private boolean success;
 	private boolean cancelled;
+	// Set while a stale cached response is refreshed. The client already got the 
+	// cached response and must not be notified again.
+	private boolean revalidating;
 	private boolean terminate;
 	
 	private int progress;
@@ -54,6 +68,17 @@ abstract public class RESTRequestor extends Thread {
 	abstract protected URL buildRequestURL(RESTQuery queryData);
 	abstract protected void parseResponse(InputStream is, int contentLength);
 	
+	// Requestors of text responses can ask the server for a compressed body.
+	protected boolean acceptsCompressedResponse() {
+		return false;
+	}
+	
+	// Requestors whose responses may be cached return the policy for caching here.
+	// Responses are only cached if a ResponseCache has been installed.
+	protected CachePolicy getCachePolicy() {
+		return null;
+	}
+	
 	protected void setResult(Object result) {
 		this.result = result;
 	}
@@ -66,6 +91,13 @@ abstract public class RESTRequestor extends Thread {
 		this.success = success;
 	}
 	
+	// Number of bytes of the current response received from the network so far.
+	// 0 for responses from the cache.
+	protected long getTransferredByteCount() {
+		HttpTransport.Response response = currentResponse;
+		return response == null ? 0 : response.getTransferredByteCount();
+	}
+	
 	protected void setProgress(int percent) {
 		Assert.assertTrue(currentQuery != null);
 		
@@ -80,24 +112,95 @@ abstract public class RESTRequestor extends Thread {
 		currentQuery.callbackHandler.sendMessage(msg);
 	}
 	
+	// Sends a part of the result to the client while the response is still being
+	// parsed. offset is the position of the part within the complete result and 
+	// is passed in arg1 of the message. The complete result is sent anyway when 
+	// the query has finished. Clients must be prepared to receive the same part 
+	// more than once (e.g., if a query is fetched again after a failed attempt).
+	//
+	// Queries waiting for the same request get the partial results only if they 
+	// joined before the first part was sent, so they never miss the beginning of 
+	// the result. Queries joining later only get the complete result.
+	protected void publishPartialResult(Object partialResult, int offset) {
+		Assert.assertTrue(currentQuery != null);
+		
+		if (revalidating || isCancelled()) {
+			return;
+		}
+		
+		sendPartialResult(currentQuery, partialResult, offset);
+		
+		if (currentRequestKey != null) {
+			List<RequestCoalescer.Waiter> waiters = RequestCoalescer.getInstance().getPartialResultWaiters(currentRequestKey, this);
+			for (RequestCoalescer.Waiter waiter : waiters) {
+				sendPartialResult(waiter.query, copyResult(partialResult), offset);
+			}
+		}
+	}
+	
+	private void sendPartialResult(RESTQuery query, Object partialResult, int offset) {
+		RESTResponse response = new RESTResponse(query, partialResult, null);
+		Message msg = Message.obtain(query.callbackHandler, RESPONSE_PARTIAL_RESULT);
+		msg.arg1 = offset;
+		msg.obj = response;
+		query.callbackHandler.sendMessage(msg);
+	}
+	
 	private void notifyClient() {
+		if (!revalidating) {
+			sendResponse(currentQuery, result);
+		}
+		
+		if (currentRequestKey != null && !isCancelled()) {
+			// Pass the response on to all queries waiting for the same request.
+			List<RequestCoalescer.Waiter> waiters = RequestCoalescer.getInstance().complete(currentRequestKey, this);
+			for (RequestCoalescer.Waiter waiter : waiters) {
+				sendResponse(waiter.query, copyResult(result));
+			}
+		}
+	}
+	
+	private void sendResponse(RESTQuery query, Object result) {
 		Message msg = null;
 		
-		RESTResponse response = new RESTResponse(currentQuery, result, errorMsg);
+		RESTResponse response = new RESTResponse(query, result, errorMsg);
 		
 		if (success) {
-			msg = Message.obtain(currentQuery.callbackHandler, RESPONSE_QUERY_FINISHED);
+			msg = Message.obtain(query.callbackHandler, RESPONSE_QUERY_FINISHED);
 		} else {
-			msg = Message.obtain(currentQuery.callbackHandler, RESPONSE_QUERY_FAILED);
+			msg = Message.obtain(query.callbackHandler, RESPONSE_QUERY_FAILED);
 		}
 		
 		msg.obj = response;
 		
-		currentQuery.callbackHandler.sendMessage(msg);
+		query.callbackHandler.sendMessage(msg);
+	}
+	
+	// Clients may modify result lists (e.g., filter them). Therefore, each client 
+	// receiving a shared response gets its own list.
+	@SuppressWarnings("unchecked")
+	private Object copyResult(Object result) {
+		if (result instanceof List<?>) {
+			return new ArrayList<Object>((List<Object>) result);
+		}
+		
+		return result;
+	}
+	
+	private String getRequestKey(RESTQuery query) {
+		if (query.requestKey == null) {
+			URL url = buildRequestURL(query);
+			if (url != null) {
+				query.requestKey = url.toString();
+			}
+		}
+		
+		return query.requestKey;
 	}
 	
 	private void doRequest() {
-		InputStream is = null;
+		HttpTransport.Response response = null;
+		boolean reuseConnection = false;
 		
 		try {
 			initQuery();
@@ -110,11 +213,70 @@ abstract public class RESTRequestor extends Thread {
 				return;
 			}
 	
+			CachePolicy cachePolicy = getCachePolicy();
+			ResponseCache cache = ResponseCache.getInstance();
+			String cacheKey = null;
+			if (cachePolicy != null && cache != null) {
+				cacheKey = cachePolicy.getCacheKey(url);
+			}
+			
+			if (cacheKey != null) {
+				ResponseCache.Entry entry = cache.get(cacheKey);
+				if (entry != null) {
+					parseResponse(new ByteArrayInputStream(entry.data), entry.data.length);
+					if (success) {
+						Log.i(LOG_TAG, "Answered REST request from cache: " + url.toString());
+						notifyClient();
+						
+						if (entry.isFresh()) {
+							return;
+						}
+						
+						// The client got the stale response. Now, fetch a new response to 
+						// update the cache without notifying the client again.
+						revalidating = true;
+					} else {
+						cache.remove(cacheKey);
+					}
+					
+					resetResponseState();
+				}
+			}
+			
+			String requestKey = getRequestKey(currentQuery);
+			if (revalidating && RequestCoalescer.getInstance().isInFlight(requestKey)) {
+				// Someone else is already fetching (and caching) this request.
+				return;
+			}
+			if (!RequestCoalescer.getInstance().join(requestKey, this, currentQuery)) {
+				// The same request is already in flight. The response of this request
+				// will also be delivered to the current query.
+				return;
+			}
+			setCurrentRequestKey(requestKey);
+			attachQueuedDuplicates(requestKey);
+			
 			Log.i(LOG_TAG, "Doing REST request with the following URL: " + url.toString());
 			
-			URLConnection connection = url.openConnection();
-			is = connection.getInputStream();
-			parseResponse(is, connection.getContentLength());
+			response = HttpTransport.getInstance().open(url, acceptsCompressedResponse());
+			currentResponse = response;
+			
+			InputStream is = response.getInputStream();
+			TeeInputStream tee = null;
+			ByteArrayOutputStream responseCopy = null;
+			if (cacheKey != null) {
+				responseCopy = new ByteArrayOutputStream();
+				tee = new TeeInputStream(is, responseCopy);
+				is = tee;
+			}
+			
+			parseResponse(is, response.getContentLength());
+			reuseConnection = success && !isCancelled();
+			
+			if (tee != null && reuseConnection) {
+				tee.drain();
+				cache.put(cacheKey, responseCopy.toByteArray(), cachePolicy.getTimeToLive(url), cachePolicy.getMaxStale(url));
+			}
 
 			notifyClient();
 		} catch (InterruptedException ex) {
@@ -125,10 +287,19 @@ abstract public class RESTRequestor extends Thread {
 			setErrorMsg(e.getLocalizedMessage());
 			notifyClient();
 		} finally {
-			if (is != null) {
-				try {
-					is.close();
-				} catch (Exception e2) {}
+			currentResponse = null;
+			if (response != null) {
+				if (reuseConnection) {
+					response.close();
+				} else {
+					response.abort();
+				}
+			}
+			
+			if (currentRequestKey != null) {
+				// If the request was not completed (e.g., because it was cancelled), 
+				// queries waiting for it must be fetched again.
+				RequestCoalescer.getInstance().abandon(currentRequestKey, this);
 			}
 			
 			finishQuery();
@@ -137,16 +308,38 @@ abstract public class RESTRequestor extends Thread {
 
 	private synchronized void initQuery() throws InterruptedException {
 		cancelled = false;
+		revalidating = false;
+		resetResponseState();
+		
+		dequeueQuery();
+	}
+	
+	private synchronized void resetResponseState() {
 		success = false;
 		result = null;
 		errorMsg = null;
 		progress = 0;
-		
-		dequeueQuery();
 	}
 
 	private synchronized void finishQuery() {
 		currentQuery = null;
+		currentRequestKey = null;
+	}
+	
+	private synchronized void setCurrentRequestKey(String requestKey) {
+		currentRequestKey = requestKey;
+	}
+	
+	// Queued queries for the request that is about to be fetched don't need a 
+	// request of their own.
+	private synchronized void attachQueuedDuplicates(String requestKey) {
+		for (Iterator<RESTQuery> it = queue.iterator(); it.hasNext(); ) {
+			RESTQuery query = it.next();
+			if (requestKey.equals(getRequestKey(query))) {
+				it.remove();
+				RequestCoalescer.getInstance().attach(requestKey, this, query);
+			}
+		}
 	}
 	
 	@Override
@@ -158,6 +351,7 @@ abstract public class RESTRequestor extends Thread {
 	
 	public synchronized void cancelQuery(RESTQuery query) {
 		queue.remove(query);
+		RequestCoalescer.getInstance().cancel(query);
 			
 		if (query == currentQuery) {
 			cancelled = true;
@@ -20,13 +20,16 @@
 package org.openpanodroid.rest;
 
 import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URL;
-import java.util.logging.ErrorManager;
 
 import junit.framework.Assert;
 
+import org.openpanodroid.ioutils.ByteArrayPool;
+
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
@@ -34,50 +37,149 @@ public class RESTRequestorBitmap extends RESTRequestor {
 
 	private final static int MAX_CHUNK_SIZE = 10000;
 	
-	private BitmapFactory.Options bitmapOptions = null;
+	// Thumbnails are a few 10 kB each. Keeping some of them around is enough 
+	// to serve all requestors without allocating a new buffer per response.
+	private final static int MAX_POOLED_BYTES = 256*1024;
+	
+	private static final ByteArrayPool bufferPool = new ByteArrayPool(MAX_POOLED_BYTES);
+	
+	private BitmapDecoder decoder;
+	
+	// Decodes bitmaps with the given options (or the default options).
+	private static class OptionsDecoder implements BitmapDecoder {
+		private BitmapFactory.Options bitmapOptions;
+		
+		public OptionsDecoder(BitmapFactory.Options bitmapOptions) {
+			this.bitmapOptions = bitmapOptions;
+		}
+		
+		@Override
+		public Bitmap decode(byte[] data, int offset, int length) {
+			if (bitmapOptions != null) {
+				return BitmapFactory.decodeByteArray(data, offset, length, bitmapOptions);
+			} else {
+				return BitmapFactory.decodeByteArray(data, offset, length);
+			}
+		}
+		
+		@Override
+		public Bitmap decode(InputStream is) {
+			if (bitmapOptions != null) {
+				return BitmapFactory.decodeStream(is, null, bitmapOptions);
+			} else {
+				return BitmapFactory.decodeStream(is);
+			}
+		}
+	}
+	
+	private class CancellableInputStream extends FilterInputStream {
+		public CancellableInputStream(InputStream is) {
+			super(is);
+		}
+		
+		@Override
+		public int read() throws IOException {
+			checkCancelled();
+			return super.read();
+		}
+		
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			checkCancelled();
+			return super.read(buffer, offset, count);
+		}
+		
+		@Override
+		public long skip(long byteCount) throws IOException {
+			checkCancelled();
+			return super.skip(byteCount);
+		}
+		
+		private void checkCancelled() throws InterruptedIOException {
+			if (isCancelled()) {
+				throw new InterruptedIOException("Query cancelled.");
+			}
+		}
+	}
 	
 	public RESTRequestorBitmap(BitmapFactory.Options bitmapOptions) {
+		this(new OptionsDecoder(bitmapOptions));
+	}
+	
+	public RESTRequestorBitmap(BitmapDecoder decoder) {
 		super();
-		this.bitmapOptions = bitmapOptions;
+		this.decoder = decoder;
 	}
 	
 	@Override
 	protected void parseResponse(InputStream is, int contentLength) {
+		if (contentLength > 0) {
+			parseBufferedResponse(is, contentLength);
+		} else {
+			// Content length is unknown (e.g., chunked transfer encoding).
+			// Let the decoder pull the data directly from the network.
+			parseStreamedResponse(is);
+		}
+	}
+	
+	private void parseBufferedResponse(InputStream is, int contentLength) {
 		int offset = 0;
-		byte[] buffer = new byte[contentLength];
+		byte[] buffer = bufferPool.acquire(contentLength);
 		
-		BufferedInputStream bs = new BufferedInputStream(is);
+		try {
+			BufferedInputStream bs = new BufferedInputStream(is);
 
-		while (offset < contentLength) {
-			if (isCancelled()) {
-				return;
-			}
-			
-			try {
-				int chunkSize = MAX_CHUNK_SIZE > contentLength-offset ? contentLength-offset : MAX_CHUNK_SIZE;
-				int read = bs.read(buffer, offset, chunkSize);
-				if (read == -1) {
+			while (offset < contentLength) {
+				if (isCancelled()) {
+					return;
+				}
+				
+				try {
+					int chunkSize = MAX_CHUNK_SIZE > contentLength-offset ? contentLength-offset : MAX_CHUNK_SIZE;
+					int read = bs.read(buffer, offset, chunkSize);
+					if (read == -1) {
+						setSuccessState(false);
+						return;
+					} else {
+						offset += read;
+						setProgress((int) (100.0*offset/contentLength + 0.5));
+					}
+				} catch (IOException e) {
 					setSuccessState(false);
+					setErrorMsg(e.getLocalizedMessage());
 					return;
-				} else {
-					offset += read;
-					setProgress((int) (100.0*offset/contentLength + 0.5));
 				}
-			} catch (IOException e) {
-				setSuccessState(false);
-				setErrorMsg(e.getLocalizedMessage());
-				return;
 			}
+			
+			Bitmap bitmap = decoder.decode(buffer, 0, contentLength);
+			
+			setBitmapResult(bitmap);
+		} finally {
+			// The decoder does not keep a reference to the buffer.
+			bufferPool.release(buffer);
 		}
-		
+	}
+	
+	private void parseStreamedResponse(InputStream is) {
+		InputStream cs = new CancellableInputStream(new BufferedInputStream(is));
 		Bitmap bitmap;
 		
-		if (bitmapOptions != null) {
-			bitmap = BitmapFactory.decodeByteArray(buffer, 0, contentLength, bitmapOptions);
-		} else {
-			bitmap = BitmapFactory.decodeByteArray(buffer, 0, contentLength);
+		try {
+			bitmap = decoder.decode(cs);
+		} catch (Exception e) {
+			setSuccessState(false);
+			setErrorMsg(e.getLocalizedMessage());
+			return;
+		}
+		
+		if (isCancelled()) {
+			return;
 		}
 		
+		setBitmapResult(bitmap);
+	}
+	
+	private void setBitmapResult(Bitmap bitmap) {
 		if (bitmap == null) {
 			setSuccessState(false);
 		} else {
@@ -19,34 +19,103 @@
 
 package org.openpanodroid.rest;
 
+import java.io.IOException;
 import java.io.InputStream;
 
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
+import org.openpanodroid.ioutils.XmlTokenizer;
 
-import org.xml.sax.helpers.DefaultHandler;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
 
+// Parses XML responses with a streaming tokenizer. The tokenizer is created
+// once per requestor (i.e., per requestor thread) and re-used for every 
+// response. Subclasses handle the start tags they are interested in and 
+// pull the attributes they need directly from the tokenizer. Names are 
+// compared and numbers are parsed in the tokenizer's character buffer, so 
+// strings are only created for attribute values that are kept.
 abstract public class RESTRequestorXML extends RESTRequestor {
 	
-	abstract protected DefaultHandler createSAXHandler();
+	// If true, the number and size of objects allocated while parsing a response
+	// is logged. Allocation counting slows down the VM, so this is for 
+	// profiling only.
+	protected static final boolean COUNT_ALLOCATIONS = false;
+	
+	private static final int XML_BUFFER_SIZE = 8*1024;
+	
+	private XmlTokenizer xml = null;
+	
+	// Called for every start tag of the response. The tokenizer is positioned on
+	// the start tag. Implementations may read on (e.g., with nextText()).
+	abstract protected void handleStartTag(XmlTokenizer xml) throws IOException;
+	
+	@Override
+	protected boolean acceptsCompressedResponse() {
+		return true;
+	}
 	
 	@Override
 	protected void parseResponse(InputStream is, int contentLength) {
+		long tStart = SystemClock.elapsedRealtime();
+		if (COUNT_ALLOCATIONS) {
+			Debug.startAllocCounting();
+			Debug.resetThreadAllocCount();
+			Debug.resetThreadAllocSize();
+		}
+		
+		int tagCnt = 0;
+		
 		try {
-			SAXParserFactory factory = SAXParserFactory.newInstance();
-			SAXParser parser = factory.newSAXParser();
+			if (xml == null) {
+				xml = new XmlTokenizer(XML_BUFFER_SIZE);
+			}
 			
-			DefaultHandler saxHandler = createSAXHandler();
+			xml.setInput(is);
 			
-			if (saxHandler == null) {
-				setSuccessState(false);
-			} else {
-				parser.parse(is, saxHandler);
+			while (xml.next() != XmlTokenizer.END_DOCUMENT) {
+				if (isCancelled()) {
+					setSuccessState(false);
+					return;
+				}
+				
+				if (xml.getToken() == XmlTokenizer.START_TAG) {
+					tagCnt++;
+					handleStartTag(xml);
+				}
 			}
 		} catch (Exception ex) {
 			setErrorMsg(ex.getLocalizedMessage());
 			setSuccessState(false);
+		} finally {
+			long parseTime = SystemClock.elapsedRealtime() - tStart;
+			if (COUNT_ALLOCATIONS) {
+				Debug.stopAllocCounting();
+				Log.i(LOG_TAG, "Parsed " + tagCnt + " elements (" + xml.getByteCount() + 
+						" bytes decoded XML) in " + parseTime + " ms; " + Debug.getThreadAllocCount() + 
+						" allocations, " + Debug.getThreadAllocSize() + " bytes");
+			} else {
+				Log.i(LOG_TAG, "Parsed " + tagCnt + " elements (" + xml.getByteCount() + 
+						" bytes decoded XML) in " + parseTime + " ms");
+			}
+			
+			xml.setInput(null);
 		}
 	}
-
+	
+	// Returns true if the tokenizer is positioned on a tag with the given name.
+	protected static boolean isTag(XmlTokenizer xml, String name) {
+		return xml.nameEquals(name);
+	}
+	
+	// Returns true if the rsp element reports success.
+	protected static boolean isResponseOK(XmlTokenizer xml) {
+		int attributeCnt = xml.getAttributeCount();
+		for (int i = 0; i < attributeCnt; i++) {
+			if (xml.attributeNameEquals(i, "stat")) {
+				return xml.attributeValueEquals(i, "ok");
+			}
+		}
+		
+		return false;
+	}
 }
@@ -0,0 +1,184 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.rest;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import android.util.Log;
+
+// Keeps track of the requests that are currently being fetched by any
+// requestor of the process. A query whose request URL equals the URL of an
+// in-flight request does not cause a second fetch. Instead, it waits for the
+// in-flight request, and the response is passed to all waiting queries.
+//
+// Since the registry is shared by all requestors, this also covers requestors
+// of a destroyed activity whose requests are still running (e.g., after
+// rotating the screen).
+public class RequestCoalescer {
+	private static final String LOG_TAG = RequestCoalescer.class.getSimpleName();
+
+	private static RequestCoalescer instance = null;
+
+	private Map<String, InFlightRequest> inFlightRequests = new HashMap<String, InFlightRequest>();
+
+	private int fetchCnt = 0;
+	private int suppressedCnt = 0;
+
+	static class Waiter {
+		public RESTRequestor requestor;
+		public RESTQuery query;
+		// Set if the query joined before the first partial result was sent, i.e., 
+		// it gets all partial results.
+		public boolean receivesPartialResults;
+
+		public Waiter(RESTRequestor requestor, RESTQuery query, boolean receivesPartialResults) {
+			this.requestor = requestor;
+			this.query = query;
+			this.receivesPartialResults = receivesPartialResults;
+		}
+	}
+
+	private static class InFlightRequest {
+		public RESTRequestor fetcher;
+		public List<Waiter> waiters = new LinkedList<Waiter>();
+		public boolean partialResultSent = false;
+
+		public InFlightRequest(RESTRequestor fetcher) {
+			this.fetcher = fetcher;
+		}
+	}
+
+	public static synchronized RequestCoalescer getInstance() {
+		if (instance == null) {
+			instance = new RequestCoalescer();
+		}
+
+		return instance;
+	}
+
+	// Returns true if the given requestor has to fetch the request itself. Otherwise,
+	// the query was attached to a request already in flight and will be answered
+	// when this request finishes.
+	synchronized boolean join(String key, RESTRequestor requestor, RESTQuery query) {
+		InFlightRequest request = inFlightRequests.get(key);
+
+		if (request == null) {
+			inFlightRequests.put(key, new InFlightRequest(requestor));
+			fetchCnt++;
+			return true;
+		}
+
+		request.waiters.add(new Waiter(requestor, query, !request.partialResultSent));
+		suppressedCnt++;
+		Log.i(LOG_TAG, "Coalesced duplicate request (" + suppressedCnt + " of " +
+				(fetchCnt+suppressedCnt) + " requests suppressed)");
+
+		return false;
+	}
+
+	synchronized boolean isInFlight(String key) {
+		return inFlightRequests.containsKey(key);
+	}
+	
+	// Attaches a query to the request the given requestor is currently fetching.
+	synchronized void attach(String key, RESTRequestor requestor, RESTQuery query) {
+		InFlightRequest request = inFlightRequests.get(key);
+		Assert.assertTrue(request != null && request.fetcher == requestor);
+
+		request.waiters.add(new Waiter(requestor, query, !request.partialResultSent));
+		suppressedCnt++;
+	}
+
+	// Finishes an in-flight request and returns the waiting queries that have to be
+	// notified about the response.
+	synchronized List<Waiter> complete(String key, RESTRequestor fetcher) {
+		InFlightRequest request = inFlightRequests.get(key);
+
+		if (request == null || request.fetcher != fetcher) {
+			return new LinkedList<Waiter>();
+		}
+
+		inFlightRequests.remove(key);
+
+		return request.waiters;
+	}
+
+	// Returns the waiting queries a partial result of the given in-flight request 
+	// has to be sent to. Queries joining from now on only get the complete result.
+	synchronized List<Waiter> getPartialResultWaiters(String key, RESTRequestor fetcher) {
+		List<Waiter> waiters = new LinkedList<Waiter>();
+		InFlightRequest request = inFlightRequests.get(key);
+		
+		if (request == null || request.fetcher != fetcher) {
+			return waiters;
+		}
+		
+		request.partialResultSent = true;
+		for (Waiter waiter : request.waiters) {
+			if (waiter.receivesPartialResults) {
+				waiters.add(waiter);
+			}
+		}
+		
+		return waiters;
+	}
+
+	// Drops an in-flight request without a response (e.g., because the fetching
+	// query was cancelled). Waiting queries are handed back to their requestors,
+	// so one of them will fetch the request again.
+	void abandon(String key, RESTRequestor fetcher) {
+		List<Waiter> waiters = complete(key, fetcher);
+
+		for (Waiter waiter : waiters) {
+			waiter.requestor.addQuery(waiter.query);
+		}
+	}
+
+	// Removes a waiting query. Returns true if the query was waiting for an
+	// in-flight request.
+	synchronized boolean cancel(RESTQuery query) {
+		for (InFlightRequest request : inFlightRequests.values()) {
+			for (Iterator<Waiter> it = request.waiters.iterator(); it.hasNext(); ) {
+				if (it.next().query == query) {
+					it.remove();
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	// Number of requests that were actually sent to the network.
+	public synchronized int getFetchCount() {
+		return fetchCnt;
+	}
+
+	// Number of queries that were answered by another query's request.
+	public synchronized int getSuppressedCount() {
+		return suppressedCnt;
+	}
+}
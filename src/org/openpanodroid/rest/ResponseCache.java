@@ -0,0 +1,287 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openpanodroid.rest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+// Cache for REST responses. Entries are kept in memory (for the most recently
+// used ones) and on disk, so they survive restarts of the process. Each entry 
+// is fresh until its time to live has passed. After that, it is stale and may
+// still be used for a limited time while it is revalidated.
+public class ResponseCache {
+	private static final String LOG_TAG = ResponseCache.class.getSimpleName();
+	
+	private static final int FILE_VERSION = 1;
+	private static final String FILE_SUFFIX = ".rsp";
+	
+	private static final int MAX_MEMORY_ENTRIES = 32;
+	private static final long MAX_DISK_SIZE = 2*1024*1024; // [byte]
+	
+	private static ResponseCache instance = null;
+	
+	private File directory;
+	private long diskSize;
+	
+	private LinkedHashMap<String, Entry> memoryCache = new LinkedHashMap<String, Entry>(MAX_MEMORY_ENTRIES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > MAX_MEMORY_ENTRIES;
+		}
+	};
+	
+	private int hitCnt = 0;
+	private int staleHitCnt = 0;
+	private int missCnt = 0;
+	
+	public static class Entry {
+		public final String key;
+		public final byte[] data;
+		public final long expires; // [ms since epoch]
+		public final long staleUntil; // [ms since epoch]
+		
+		public Entry(String key, byte[] data, long expires, long staleUntil) {
+			this.key = key;
+			this.data = data;
+			this.expires = expires;
+			this.staleUntil = staleUntil;
+		}
+		
+		public boolean isFresh() {
+			return System.currentTimeMillis() < expires;
+		}
+		
+		public boolean isUsable() {
+			return System.currentTimeMillis() < staleUntil;
+		}
+	}
+	
+	// Sets up the cache in the given directory. Has to be called before getInstance()
+	// returns a cache; before that, responses are not cached.
+	public static synchronized void install(File directory) {
+		if (instance != null && instance.directory.equals(directory)) {
+			return;
+		}
+		
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			Log.e(LOG_TAG, "Could not create cache directory " + directory.getPath());
+			return;
+		}
+		
+		instance = new ResponseCache(directory);
+	}
+	
+	public static synchronized ResponseCache getInstance() {
+		return instance;
+	}
+	
+	private ResponseCache(File directory) {
+		this.directory = directory;
+		
+		diskSize = 0;
+		for (File file : listCacheFiles()) {
+			diskSize += file.length();
+		}
+	}
+	
+	// Returns the cached response for the given key, or null if there is no usable
+	// (fresh or stale) response.
+	public synchronized Entry get(String key) {
+		Entry entry = memoryCache.get(key);
+		
+		if (entry == null) {
+			entry = readEntry(getFile(key));
+			if (entry != null && !entry.key.equals(key)) {
+				// Hash collision.
+				entry = null;
+			}
+			if (entry != null) {
+				memoryCache.put(key, entry);
+			}
+		}
+		
+		if (entry != null && !entry.isUsable()) {
+			remove(key);
+			entry = null;
+		}
+		
+		if (entry == null) {
+			missCnt++;
+		} else if (entry.isFresh()) {
+			hitCnt++;
+		} else {
+			staleHitCnt++;
+		}
+		
+		return entry;
+	}
+	
+	public synchronized void put(String key, byte[] data, long timeToLive, long maxStale) {
+		long now = System.currentTimeMillis();
+		Entry entry = new Entry(key, data, now+timeToLive, now+timeToLive+maxStale);
+		
+		memoryCache.put(key, entry);
+		writeEntry(getFile(key), entry);
+		trimDiskCache();
+	}
+	
+	public synchronized void remove(String key) {
+		memoryCache.remove(key);
+		
+		File file = getFile(key);
+		long length = file.length();
+		if (file.delete()) {
+			diskSize -= length;
+		}
+	}
+	
+	public synchronized int getHitCount() {
+		return hitCnt;
+	}
+	
+	public synchronized int getStaleHitCount() {
+		return staleHitCnt;
+	}
+	
+	public synchronized int getMissCount() {
+		return missCnt;
+	}
+	
+	private File getFile(String key) {
+		String name = Integer.toHexString(key.hashCode()) + FILE_SUFFIX;
+		return new File(directory, name);
+	}
+	
+	private File[] listCacheFiles() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		
+		return files;
+	}
+	
+	private Entry readEntry(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		
+		DataInputStream is = null;
+		
+		try {
+			is = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			
+			int version = is.readInt();
+			if (version != FILE_VERSION) {
+				return null;
+			}
+			
+			String key = is.readUTF();
+			long expires = is.readLong();
+			long staleUntil = is.readLong();
+			int length = is.readInt();
+			byte[] data = new byte[length];
+			is.readFully(data);
+			
+			return new Entry(key, data, expires, staleUntil);
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Could not read cache entry: " + e.getMessage());
+			return null;
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+	
+	private void writeEntry(File file, Entry entry) {
+		// Write to a temporary file first, so an interrupted write does not leave
+		// a corrupted entry behind.
+		File tmpFile = new File(directory, file.getName() + ".tmp");
+		DataOutputStream os = null;
+		long oldLength = file.length();
+		
+		try {
+			os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			os.writeInt(FILE_VERSION);
+			os.writeUTF(entry.key);
+			os.writeLong(entry.expires);
+			os.writeLong(entry.staleUntil);
+			os.writeInt(entry.data.length);
+			os.write(entry.data);
+			os.close();
+			os = null;
+			
+			if (tmpFile.renameTo(file)) {
+				diskSize += file.length() - oldLength;
+			} else {
+				tmpFile.delete();
+			}
+		} catch (IOException e) {
+			Log.e(LOG_TAG, "Could not write cache entry: " + e.getMessage());
+			tmpFile.delete();
+		} finally {
+			if (os != null) {
+				try {
+					os.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+	
+	private void trimDiskCache() {
+		if (diskSize <= MAX_DISK_SIZE) {
+			return;
+		}
+		
+		// Delete least recently written entries first.
+		File[] files = listCacheFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				long t1 = f1.lastModified();
+				long t2 = f2.lastModified();
+				return (t1 < t2 ? -1 : (t1 == t2 ? 0 : 1));
+			}
+		});
+		
+		for (int i = 0; i < files.length && diskSize > MAX_DISK_SIZE; i++) {
+			long length = files[i].length();
+			if (files[i].delete()) {
+				diskSize -= length;
+			}
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/* 
+ * Copyright 2012 Frank Dürr
+ * 
+ * This file is part of OpenPanodroid.
+ *
+ * OpenPanodroid is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenPanodroid is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenPanodroid.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.openpanodroid;
+
+import junit.framework.TestCase;
+
+// Checks which faces of the cube FaceVisibility reports as visible for a table
+// of known orientations. The cube and the rotation matrix are set up like in 
+// PanodroidVortexRenderer. With latitude and longitude 0, the viewer looks 
+// along the negative z axis onto the back face. FaceVisibility has no Android 
+// dependencies, so this runs on a plain JVM.
+public class FaceVisibilityTest extends TestCase {
+	private static final float COORD = (float) Math.sin(Math.PI/4.0);
+	
+	private static final float FOV_Y_DEG = 60.0f;
+	private static final float ASPECT = 1.0f;
+	
+	private static final String[] FACE_NAMES = {"front", "back", "top", "bottom", "left", "right"};
+	
+	// Corners of the faces, in the order of FACE_NAMES.
+	private static final float[][] FACE_CORNERS = {
+		{COORD, COORD, COORD, COORD, -COORD, COORD, -COORD, COORD, COORD, -COORD, -COORD, COORD}, // front
+		{-COORD, -COORD, -COORD, -COORD, COORD, -COORD, COORD, -COORD, -COORD, COORD, COORD, -COORD}, // back
+		{COORD, COORD, COORD, -COORD, COORD, COORD, COORD, COORD, -COORD, -COORD, COORD, -COORD}, // top
+		{-COORD, -COORD, -COORD, -COORD, -COORD, COORD, COORD, -COORD, -COORD, COORD, -COORD, COORD}, // bottom
+		{COORD, COORD, -COORD, COORD, -COORD, -COORD, COORD, COORD, COORD, COORD, -COORD, COORD}, // left
+		{-COORD, COORD, COORD, -COORD, -COORD, COORD, -COORD, COORD, -COORD, -COORD, -COORD, -COORD} // right
+	};
+	
+	// Latitude and longitude in degrees, followed by the visible faces.
+	private static final Object[][] ORIENTATIONS = {
+		{0.0f, 0.0f, new String[] {"back"}},
+		{0.0f, 90.0f, new String[] {"left"}},
+		{0.0f, 180.0f, new String[] {"front"}},
+		{0.0f, -90.0f, new String[] {"right"}},
+		{90.0f, 0.0f, new String[] {"bottom"}},
+		{-90.0f, 0.0f, new String[] {"top"}},
+		{0.0f, 45.0f, new String[] {"back", "left"}},
+		{0.0f, -135.0f, new String[] {"front", "right"}},
+		{45.0f, 0.0f, new String[] {"back", "bottom"}},
+		{-45.0f, 180.0f, new String[] {"front", "top"}},
+		{-35.0f, 45.0f, new String[] {"back", "top", "left"}}
+	};
+	
+	private FaceVisibility visibility;
+	
+	@Override
+	protected void setUp() {
+		visibility = new FaceVisibility();
+		visibility.setProjection(FOV_Y_DEG, ASPECT);
+	}
+	
+	public void testOrientations() {
+		for (Object[] orientation : ORIENTATIONS) {
+			float latitudeDeg = (Float) orientation[0];
+			float longitudeDeg = (Float) orientation[1];
+			String[] visibleFaces = (String[]) orientation[2];
+			float[] rotation = calculateRotationMatrix(latitudeDeg, longitudeDeg);
+			
+			for (int faceNo = 0; faceNo < FACE_NAMES.length; faceNo++) {
+				boolean expected = contains(visibleFaces, FACE_NAMES[faceNo]);
+				assertEquals("Face " + FACE_NAMES[faceNo] + " at latitude " + latitudeDeg + 
+						", longitude " + longitudeDeg, expected, 
+						visibility.isVisible(rotation, FACE_CORNERS[faceNo]));
+			}
+		}
+	}
+	
+	public void testWideFovShowsAllButOppositeFace() {
+		visibility.setProjection(120.0f, 2.0f);
+		float[] rotation = calculateRotationMatrix(0.0f, 0.0f);
+		
+		for (int faceNo = 0; faceNo < FACE_NAMES.length; faceNo++) {
+			boolean expected = !FACE_NAMES[faceNo].equals("front");
+			assertEquals("Face " + FACE_NAMES[faceNo], expected, 
+					visibility.isVisible(rotation, FACE_CORNERS[faceNo]));
+		}
+	}
+	
+	// Same as PanodroidVortexRenderer.calculateRotationMatrix().
+	private static float[] calculateRotationMatrix(float latitudeDeg, float longitudeDeg) {
+		double longitude = Math.toRadians(longitudeDeg);
+		double latitude = Math.toRadians(latitudeDeg);
+		float[] m = new float[16];
+		
+		m[0] = (float) Math.cos(longitude);
+		m[1] = (float) (Math.sin(latitude)*Math.sin(longitude));
+		m[2] = (float) (-1.0*Math.cos(latitude)*Math.sin(longitude));
+		
+		m[5] = (float) Math.cos(latitude);
+		m[6] = (float) Math.sin(latitude);
+		
+		m[8] = (float) Math.sin(longitude);
+		m[9] = (float) (-1.0*Math.sin(latitude)*Math.cos(longitude));
+		m[10] = (float) (Math.cos(longitude)*Math.cos(latitude));
+		
+		m[15] = 1.0f;
+		
+		return m;
+	}
+	
+	private static boolean contains(String[] names, String name) {
+		for (String n : names) {
+			if (n.equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+}